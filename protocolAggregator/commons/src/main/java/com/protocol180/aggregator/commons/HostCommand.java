@@ -0,0 +1,152 @@
+package com.protocol180.aggregator.commons;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * HostCommand is the message a 180Protocol coalition host passes to an AggregationEnclave through
+ * {@code com.r3.conclave.host.EnclaveHost#callEnclave(byte[])} to manage the aggregation sessions the enclave serves.
+ * Every aggregation runs in its own session, identified by a session id that the host also puts in front of the
+ * routing hint of every mail of the aggregation ("sessionId:flowId"), so one loaded enclave can serve many concurrent
+ * aggregations.
+ * Layout of version 1 of the command: [magic byte][version byte][command type code][session id length (2 bytes)]
+ * [session id (UTF-8)][payload]
+ * Hosts built before sessions were introduced pass the raw envelope schema instead, which the enclave treats as
+ * initializing its default session.
+ */
+public final class HostCommand {
+
+    public static final byte MAGIC = (byte) 0xB5;
+    public static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 5;
+
+    public static final String CACHED_OUTPUT_LOADED = "Cached Output Loaded";
+
+    /**
+     * Session management commands.
+     * INIT_SESSION - starts a session (or restarts an existing one) with the envelope schema carried as payload
+     * CLOSE_SESSION - drops a session and the data received for it, except the outputs the enclave cached and the
+     * inputs it retained for providers uploading incrementally, which it keeps for later sessions
+     * SET_OUTPUT_CODEC - sets the Avro codec the outputs of a session are compressed with, its name carried as payload
+     * LOAD_CACHED_OUTPUT - loads the outputs cached by the enclave for the input digests its providers reported, the
+     * enclave answers {@link #CACHED_OUTPUT_LOADED} if it holds them
+     * SET_RETAINED_INPUT_COUNT - sizes the inputs the enclave retains for providers uploading incrementally to the
+     * host's coalition, the number of inputs (one per provider and data type) carried as payload
+     */
+    public enum Type {
+        INIT_SESSION((byte) 1),
+        CLOSE_SESSION((byte) 2),
+        SET_OUTPUT_CODEC((byte) 3),
+        LOAD_CACHED_OUTPUT((byte) 4),
+        SET_RETAINED_INPUT_COUNT((byte) 5);
+
+        public final byte code;
+
+        Type(byte code) {
+            this.code = code;
+        }
+
+        static Type fromCode(byte code) {
+            for (Type type : values()) {
+                if (type.code == code)
+                    return type;
+            }
+            return null;
+        }
+    }
+
+    private final Type type;
+    private final String sessionId;
+    private final byte[] payload;
+
+    public HostCommand(Type type, String sessionId, byte[] payload) {
+        if (type == null || sessionId == null || sessionId.isEmpty() || sessionId.contains(":"))
+            throw new IllegalArgumentException("Host command requires a type and a session id without ':'");
+        this.type = type;
+        this.sessionId = sessionId;
+        this.payload = payload == null ? new byte[0] : payload;
+    }
+
+    public static HostCommand initSession(String sessionId, byte[] schemaBytes) {
+        return new HostCommand(Type.INIT_SESSION, sessionId, schemaBytes);
+    }
+
+    public static HostCommand closeSession(String sessionId) {
+        return new HostCommand(Type.CLOSE_SESSION, sessionId, null);
+    }
+
+    /**
+     * @param codecName name of the codec as accepted by {@code org.apache.avro.file.CodecFactory#fromString(String)}
+     */
+    public static HostCommand setOutputCodec(String sessionId, String codecName) {
+        return new HostCommand(Type.SET_OUTPUT_CODEC, sessionId, codecName.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static HostCommand loadCachedOutput(String sessionId) {
+        return new HostCommand(Type.LOAD_CACHED_OUTPUT, sessionId, null);
+    }
+
+    public static HostCommand setRetainedInputCount(String sessionId, int retainedInputCount) {
+        return new HostCommand(Type.SET_RETAINED_INPUT_COUNT, sessionId,
+                Integer.toString(retainedInputCount).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public byte[] serialize() {
+        byte[] sessionIdBytes = sessionId.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(HEADER_SIZE + sessionIdBytes.length + payload.length)
+                .put(MAGIC)
+                .put(VERSION)
+                .put(type.code)
+                .putShort((short) sessionIdBytes.length)
+                .put(sessionIdBytes)
+                .put(payload)
+                .array();
+    }
+
+    /**
+     * Reads a command written by {@link #serialize()}. Returns null if the bytes are not a host command, which is the
+     * case for the raw schema bytes sent by hosts built before sessions were introduced.
+     */
+    public static HostCommand deserialize(byte[] bytes) {
+        if (bytes == null || bytes.length < HEADER_SIZE || bytes[0] != MAGIC || bytes[1] != VERSION)
+            return null;
+        Type type = Type.fromCode(bytes[2]);
+        int sessionIdLength = ByteBuffer.wrap(bytes, 3, 2).getShort() & 0xFFFF;
+        if (type == null || sessionIdLength == 0 || HEADER_SIZE + sessionIdLength > bytes.length)
+            return null;
+        String sessionId = new String(bytes, HEADER_SIZE, sessionIdLength, StandardCharsets.UTF_8);
+        byte[] payload = Arrays.copyOfRange(bytes, HEADER_SIZE + sessionIdLength, bytes.length);
+        return new HostCommand(type, sessionId, payload);
+    }
+
+    /**
+     * Builds the routing hint for a mail of the session, to be delivered on behalf of the given flow.
+     */
+    public static String routingHint(String sessionId, String flowId) {
+        return sessionId + ":" + flowId;
+    }
+
+    /**
+     * Returns the session id of a routing hint built by {@link #routingHint(String, String)}, or null if the hint
+     * carries no session id.
+     */
+    public static String sessionIdOf(String routingHint) {
+        if (routingHint == null)
+            return null;
+        int separator = routingHint.indexOf(':');
+        return separator <= 0 ? null : routingHint.substring(0, separator);
+    }
+}
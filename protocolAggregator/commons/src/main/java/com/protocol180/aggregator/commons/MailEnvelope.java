@@ -0,0 +1,103 @@
+package com.protocol180.aggregator.commons;
+
+import java.nio.ByteBuffer;
+
+/**
+ * MailEnvelope is the compact header that 180Protocol clients put in the envelope of every Conclave mail sent to an
+ * AggregationEnclave. The envelope is authenticated but not encrypted, which lets the enclave route a mail by its
+ * MailType in constant time, without materialising or scanning the (possibly very large) mail body.
+ * Layout of version 1 of the header: [magic byte][version byte][mail type code]
+ * Provider data uploaded in chunks carries version 2 of the header, which adds the index of the chunk and whether it is
+ * the last chunk of the upload: [magic byte][version byte][mail type code][chunk index int][last chunk byte]
+ * The enclave reads the header from {@code com.r3.conclave.mail.EnclaveMail#getEnvelope()}.
+ */
+public final class MailEnvelope {
+
+    public static final byte MAGIC = (byte) 0xB4;
+    public static final byte VERSION = 1;
+    public static final byte CHUNKED_VERSION = 2;
+    public static final int HEADER_SIZE = 3;
+    public static final int CHUNKED_HEADER_SIZE = HEADER_SIZE + 5;
+
+    private final MailType mailType;
+    private final boolean chunked;
+    private final int chunkIndex;
+    private final boolean lastChunk;
+
+    public MailEnvelope(MailType mailType) {
+        this(mailType, false, 0, true);
+    }
+
+    /**
+     * Creates the envelope of a chunk of a chunked upload. Chunks are numbered from 0.
+     */
+    public MailEnvelope(MailType mailType, int chunkIndex, boolean lastChunk) {
+        this(mailType, true, chunkIndex, lastChunk);
+    }
+
+    private MailEnvelope(MailType mailType, boolean chunked, int chunkIndex, boolean lastChunk) {
+        if (mailType == null)
+            throw new IllegalArgumentException("Mail type must be provided for a mail envelope");
+        if (chunkIndex < 0)
+            throw new IllegalArgumentException("Chunk index must not be negative");
+        this.mailType = mailType;
+        this.chunked = chunked;
+        this.chunkIndex = chunkIndex;
+        this.lastChunk = lastChunk;
+    }
+
+    public MailType getMailType() {
+        return mailType;
+    }
+
+    /**
+     * Returns true if the mail is a chunk of a chunked upload, false if it carries the whole upload.
+     */
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    public int getChunkIndex() {
+        return chunkIndex;
+    }
+
+    public boolean isLastChunk() {
+        return lastChunk;
+    }
+
+    public byte[] serialize() {
+        if (!chunked) {
+            return ByteBuffer.allocate(HEADER_SIZE)
+                    .put(MAGIC)
+                    .put(VERSION)
+                    .put(mailType.code)
+                    .array();
+        }
+        return ByteBuffer.allocate(CHUNKED_HEADER_SIZE)
+                .put(MAGIC)
+                .put(CHUNKED_VERSION)
+                .put(mailType.code)
+                .putInt(chunkIndex)
+                .put(lastChunk ? (byte) 1 : (byte) 0)
+                .array();
+    }
+
+    /**
+     * Reads a header written by {@link #serialize()}. Returns null if the envelope is missing or was not written by a
+     * 180Protocol client, so the caller can decide how to treat such mail.
+     */
+    public static MailEnvelope deserialize(byte[] envelope) {
+        if (envelope == null || envelope.length < HEADER_SIZE || envelope[0] != MAGIC)
+            return null;
+        MailType mailType = MailType.fromCode(envelope[2]);
+        if (mailType == null)
+            return null;
+        if (envelope[1] == VERSION)
+            return new MailEnvelope(mailType);
+        if (envelope[1] != CHUNKED_VERSION || envelope.length < CHUNKED_HEADER_SIZE)
+            return null;
+        ByteBuffer chunkHeader = ByteBuffer.wrap(envelope, HEADER_SIZE, CHUNKED_HEADER_SIZE - HEADER_SIZE);
+        int chunkIndex = chunkHeader.getInt();
+        return chunkIndex < 0 ? null : new MailEnvelope(mailType, chunkIndex, chunkHeader.get() != 0);
+    }
+}
@@ -0,0 +1,35 @@
+package com.protocol180.aggregator.commons;
+
+/**
+ * Mail Types that can be configured inside a supported coalition Avro schema file
+ */
+public enum MailType {
+
+    TYPE_SCHEMA("schema", (byte) 1),
+    TYPE_IDENTITIES("identities", (byte) 2),
+    TYPE_CONSUMER("consumer", (byte) 3),
+    TYPE_PROVIDER("provider", (byte) 4),
+    TYPE_REWARDS("rewards", (byte) 5),
+    TYPE_PROVIDER_DIGEST("providerDigest", (byte) 6),
+    TYPE_PROVIDER_BASELINE("providerBaseline", (byte) 7);
+
+    public final String type;
+
+    /**
+     * Stable binary code used for the mail type inside a {@link MailEnvelope}, independent of the enum order
+     */
+    public final byte code;
+
+    private MailType(String type, byte code) {
+        this.type = type;
+        this.code = code;
+    }
+
+    public static MailType fromCode(byte code) {
+        for (MailType mailType : values()) {
+            if (mailType.code == code)
+                return mailType;
+        }
+        return null;
+    }
+}
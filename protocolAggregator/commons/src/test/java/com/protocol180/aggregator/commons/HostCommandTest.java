@@ -0,0 +1,49 @@
+package com.protocol180.aggregator.commons;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the host command codec used to manage enclave aggregation sessions.
+ */
+public class HostCommandTest {
+
+    @Test
+    void roundTripsCommands() {
+        byte[] schemaBytes = "{\"type\": \"record\"}".getBytes(StandardCharsets.UTF_8);
+        HostCommand command = HostCommand.deserialize(HostCommand.initSession("session-1", schemaBytes).serialize());
+        assertNotNull(command);
+        assertEquals(HostCommand.Type.INIT_SESSION, command.getType());
+        assertEquals("session-1", command.getSessionId());
+        assertArrayEquals(schemaBytes, command.getPayload());
+
+        HostCommand closeCommand = HostCommand.deserialize(HostCommand.closeSession("session-1").serialize());
+        assertEquals(HostCommand.Type.CLOSE_SESSION, closeCommand.getType());
+        assertEquals(0, closeCommand.getPayload().length);
+
+        HostCommand codecCommand = HostCommand.deserialize(HostCommand.setOutputCodec("session-1", "deflate").serialize());
+        assertEquals(HostCommand.Type.SET_OUTPUT_CODEC, codecCommand.getType());
+        assertEquals("deflate", new String(codecCommand.getPayload(), StandardCharsets.UTF_8));
+
+        HostCommand retentionCommand = HostCommand.deserialize(HostCommand.setRetainedInputCount("session-1", 40).serialize());
+        assertEquals(HostCommand.Type.SET_RETAINED_INPUT_COUNT, retentionCommand.getType());
+        assertEquals("40", new String(retentionCommand.getPayload(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void treatsRawSchemaBytesAsLegacyInput() {
+        assertNull(HostCommand.deserialize("{\"type\": \"record\"}".getBytes(StandardCharsets.UTF_8)));
+        assertNull(HostCommand.deserialize(new byte[]{HostCommand.MAGIC}));
+    }
+
+    @Test
+    void carriesSessionIdInRoutingHint() {
+        String routingHint = HostCommand.routingHint("session-1", "8a4c7c1e-6f52-4f4e-9d55-3f0c4c7d1a2b");
+        assertEquals("session-1", HostCommand.sessionIdOf(routingHint));
+        assertNull(HostCommand.sessionIdOf("8a4c7c1e-6f52-4f4e-9d55-3f0c4c7d1a2b"));
+        assertThrows(IllegalArgumentException.class, () -> HostCommand.closeSession("a:b"));
+    }
+}
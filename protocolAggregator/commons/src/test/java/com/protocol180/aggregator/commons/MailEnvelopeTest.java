@@ -0,0 +1,45 @@
+package com.protocol180.aggregator.commons;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the mail envelope header used to route client mail in the enclave.
+ */
+public class MailEnvelopeTest {
+
+    @Test
+    void roundTripsEnvelopes() {
+        byte[] envelopeBytes = new MailEnvelope(MailType.TYPE_CONSUMER).serialize();
+        assertEquals(MailEnvelope.HEADER_SIZE, envelopeBytes.length);
+        MailEnvelope envelope = MailEnvelope.deserialize(envelopeBytes);
+        assertNotNull(envelope);
+        assertEquals(MailType.TYPE_CONSUMER, envelope.getMailType());
+        assertFalse(envelope.isChunked());
+        assertTrue(envelope.isLastChunk());
+    }
+
+    @Test
+    void roundTripsChunkEnvelopes() {
+        MailEnvelope chunk = MailEnvelope.deserialize(new MailEnvelope(MailType.TYPE_PROVIDER, 70000, false).serialize());
+        assertNotNull(chunk);
+        assertEquals(MailType.TYPE_PROVIDER, chunk.getMailType());
+        assertTrue(chunk.isChunked());
+        assertEquals(70000, chunk.getChunkIndex());
+        assertFalse(chunk.isLastChunk());
+
+        MailEnvelope lastChunk = MailEnvelope.deserialize(new MailEnvelope(MailType.TYPE_PROVIDER, 3, true).serialize());
+        assertEquals(3, lastChunk.getChunkIndex());
+        assertTrue(lastChunk.isLastChunk());
+    }
+
+    @Test
+    void ignoresForeignEnvelopes() {
+        assertNull(MailEnvelope.deserialize(null));
+        assertNull(MailEnvelope.deserialize(new byte[]{MailEnvelope.MAGIC, MailEnvelope.VERSION}));
+        assertNull(MailEnvelope.deserialize(new byte[]{MailEnvelope.MAGIC, MailEnvelope.CHUNKED_VERSION, MailType.TYPE_PROVIDER.code}));
+        assertNull(MailEnvelope.deserialize(new byte[]{MailEnvelope.MAGIC, 9, MailType.TYPE_PROVIDER.code}));
+        assertThrows(IllegalArgumentException.class, () -> new MailEnvelope(MailType.TYPE_PROVIDER, -1, true));
+    }
+}
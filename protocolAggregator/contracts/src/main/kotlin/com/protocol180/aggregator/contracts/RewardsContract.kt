@@ -2,6 +2,7 @@ package com.protocol180.aggregator.contracts
 
 import com.protocol180.aggregator.states.RewardsState
 import net.corda.core.contracts.*
+import net.corda.core.crypto.SecureHash
 import net.corda.core.transactions.LedgerTransaction
 
 class RewardsContract: Contract {
@@ -14,6 +15,9 @@ class RewardsContract: Contract {
      * Contract to verify
      * @see com.protocol180.aggregator.states.RewardsState produced during the
      * @see com.protocol180.aggregator.flow.ConsumerAggregationFlow
+     * Rewards states are issued either one per transaction by each provider, or all together by the host when it
+     * batches rewards issuance. States issued together only hold the hash of their rewards, so providers don't see
+     * each other's rewards.
      */
     override fun verify(tx: LedgerTransaction) {
         val command = tx.commands.requireSingleCommand<Commands>()
@@ -21,16 +25,33 @@ class RewardsContract: Contract {
         when (command.value) {
             is Commands.Create -> requireThat {
                 "No inputs should be consumed when issuing a rewards state." using (tx.inputs.isEmpty())
-                "Only one rewards state should be created when issuing a rewards state." using (tx.outputs.size == 1)
-                val rewardsState = tx.outputsOfType<RewardsState>().single()
-                "A newly issued rewards must have a provider & host" using
-                        (rewardsState.provider != null && rewardsState.host != null)
-                "The enclave attestation used to create the rewards must not be null" using
-                        (rewardsState.enclaveAttestation != null)
-                "The flow topic used to create the rewards must not be null" using
-                        (rewardsState.flowTopic != null)
-                "Only the provider and host may sign the Rewards State Transaction" using
-                        (command.signers.toSet() == rewardsState.participants.map { it.owningKey }.toSet())
+                "At least one rewards state should be created when issuing rewards states." using (tx.outputs.isNotEmpty())
+                "Only rewards states should be created when issuing rewards states." using
+                        (tx.outputsOfType<RewardsState>().size == tx.outputs.size)
+                val rewardsStates = tx.outputsOfType<RewardsState>()
+                "Rewards states issued together must be issued by the same host" using
+                        (rewardsStates.map { it.host }.toSet().size == 1)
+                "Rewards states issued together must be for distinct providers" using
+                        (rewardsStates.map { it.provider }.toSet().size == rewardsStates.size)
+                rewardsStates.forEach { rewardsState ->
+                    "A newly issued rewards must have a provider & host" using
+                            (rewardsState.provider != null && rewardsState.host != null)
+                    "The enclave attestation used to create the rewards must not be null" using
+                            (rewardsState.enclaveAttestation != null)
+                    "The flow topic used to create the rewards must not be null" using
+                            (rewardsState.flowTopic != null)
+                    "A newly issued rewards must hold the rewards or their hash" using
+                            (rewardsState.decryptedRewardsBytes.isNotEmpty() || rewardsState.rewardsHash != null)
+                    "The rewards held must match their hash" using
+                            (rewardsState.decryptedRewardsBytes.isEmpty() || rewardsState.rewardsHash == null ||
+                                    rewardsState.rewardsHash == SecureHash.sha256(rewardsState.decryptedRewardsBytes))
+                }
+                if (rewardsStates.size > 1) {
+                    "Rewards states issued together must only hold the hash of their rewards" using
+                            (rewardsStates.all { it.decryptedRewardsBytes.isEmpty() && it.rewardsHash != null })
+                }
+                "Only the providers and host may sign the Rewards State Transaction" using
+                        (command.signers.toSet() == rewardsStates.flatMap { it.participants }.map { it.owningKey }.toSet())
             }
 
         }
@@ -0,0 +1,39 @@
+package com.protocol180.aggregator.schema
+
+import net.corda.core.schemas.MappedSchema
+import java.io.Serializable
+import javax.persistence.Column
+import javax.persistence.Entity
+import javax.persistence.Id
+import javax.persistence.Table
+
+/**
+ * Schema for the watermark of a provider uploading its data incrementally during
+ * @see com.protocol180.aggregator.flow.ProviderAggregationResponseFlow
+ * Entries are keyed by the data type and hold the rows of the data type's attachment the enclave retained as of the
+ * provider's last aggregation: their count and digest, the token the enclave retained them under and the fingerprint
+ * of the input schema and codec they were encoded with.
+ */
+object ProviderDataWatermarkSchema
+
+object ProviderDataWatermarkSchemaV1 : MappedSchema(schemaFamily = ProviderDataWatermarkSchema.javaClass,
+        version = 1,
+        mappedTypes = listOf(ProviderDataWatermark::class.java)) {
+    @Entity
+    @Table(name = "PROVIDER_DATA_WATERMARK")
+    class ProviderDataWatermark(@Id
+                                @Column(name = "data_type", nullable = false, unique = true)
+                                var dataType: String,
+                                @Column(name = "baseline_token", nullable = false)
+                                val baselineToken: String,
+                                @Column(name = "input_fingerprint", nullable = false)
+                                val inputFingerprint: String,
+                                @Column(name = "row_count", nullable = false)
+                                val rowCount: Int,
+                                @Column(name = "rows_digest", nullable = false)
+                                val rowsDigest: String
+    ) : Serializable {
+        constructor() : this("", "", "", 0, "")
+    }
+
+}
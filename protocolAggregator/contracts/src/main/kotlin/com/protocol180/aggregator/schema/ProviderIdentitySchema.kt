@@ -0,0 +1,32 @@
+package com.protocol180.aggregator.schema
+
+import net.corda.core.schemas.MappedSchema
+import java.io.Serializable
+import javax.persistence.Column
+import javax.persistence.Entity
+import javax.persistence.Id
+import javax.persistence.Table
+
+/**
+ * Schema for the identity token a provider reports along with the digest of its input during
+ * @see com.protocol180.aggregator.flow.ProviderAggregationResponseFlow
+ * Entries are keyed by the data type and hold a random token that is only ever sent encrypted for the enclave, so the
+ * outputs the enclave caches for the provider's input can't be claimed by another party reporting the same digest.
+ */
+object ProviderIdentitySchema
+
+object ProviderIdentitySchemaV1 : MappedSchema(schemaFamily = ProviderIdentitySchema.javaClass,
+        version = 1,
+        mappedTypes = listOf(ProviderIdentity::class.java)) {
+    @Entity
+    @Table(name = "PROVIDER_IDENTITY")
+    class ProviderIdentity(@Id
+                           @Column(name = "data_type", nullable = false, unique = true)
+                           var dataType: String,
+                           @Column(name = "identity_token", nullable = false)
+                           val identityToken: String
+    ) : Serializable {
+        constructor() : this("", "")
+    }
+
+}
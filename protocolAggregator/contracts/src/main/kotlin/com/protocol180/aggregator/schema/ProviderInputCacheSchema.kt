@@ -0,0 +1,39 @@
+package com.protocol180.aggregator.schema
+
+import net.corda.core.schemas.MappedSchema
+import java.io.Serializable
+import javax.persistence.Column
+import javax.persistence.Entity
+import javax.persistence.Id
+import javax.persistence.Lob
+import javax.persistence.Table
+
+/**
+ * Schema for caching the Avro encoded provider input created from a data attachment during
+ * @see com.protocol180.aggregator.flow.ProviderAggregationResponseFlow
+ * Entries are keyed by the attachment hash and the fingerprint of the 'aggregateInput' schema the input was encoded with.
+ */
+object ProviderInputCacheSchema
+
+object ProviderInputCacheSchemaV1 : MappedSchema(schemaFamily = ProviderInputCacheSchema.javaClass,
+        version = 1,
+        mappedTypes = listOf(CachedProviderInput::class.java)) {
+    @Entity
+    @Table(name = "PROVIDER_INPUT_CACHE")
+    class CachedProviderInput(@Id
+                              @Column(name = "cache_key", nullable = false, unique = true)
+                              var cacheKey: String,
+                              @Column(name = "attachment_hash", nullable = false)
+                              val attachmentHash: String,
+                              @Column(name = "schema_fingerprint", nullable = false)
+                              val schemaFingerprint: String,
+                              @Column(name = "data_type", nullable = false)
+                              val dataType: String,
+                              @Lob
+                              @Column(name = "avro_input_bytes", nullable = false)
+                              val avroInputBytes: ByteArray
+    ) : Serializable {
+        constructor() : this("", "", "", "", ByteArray(0))
+    }
+
+}
@@ -45,13 +45,16 @@ data class CoalitionConfigurationState(
  *  @see dataTypeCode - used as a display name for a given data type
  *  @see schemaFile - a file object that contains the avro envelope schema for the data type; used to initialize the
  *  @see com.protocol180.aggregator.flow.EnclaveClientService and dictate enclave communication
+ *  @see compressionCodec - name of the Avro codec provider inputs and enclave outputs are compressed with, e.g.
+ *  "deflate" or "xz"; null (the default) leaves them uncompressed. See org.apache.avro.file.CodecFactory.fromString
  */
 @CordaSerializable
 data class CoalitionDataType(
     val dataTypeCode: String,
     val dataTypeDisplay: String,
     val schemaFile: ByteArray,
-    val enclaveName: String
+    val enclaveName: String,
+    val compressionCodec: String? = null
 ) {
     override fun equals(other: Any?): Boolean {
         if (this === other) return true
@@ -63,6 +66,7 @@ data class CoalitionDataType(
         if (dataTypeDisplay != other.dataTypeDisplay) return false
         if (!schemaFile.contentEquals(other.schemaFile)) return false
         if (!enclaveName.contentEquals(other.enclaveName)) return false
+        if (compressionCodec != other.compressionCodec) return false
 
         return true
     }
@@ -72,6 +76,7 @@ data class CoalitionDataType(
         result = 31 * result + dataTypeDisplay.hashCode()
         result = 31 * result + schemaFile.contentHashCode()
         result = 31 * result + enclaveName.hashCode()
+        result = 31 * result + (compressionCodec?.hashCode() ?: 0)
         return result
     }
 }
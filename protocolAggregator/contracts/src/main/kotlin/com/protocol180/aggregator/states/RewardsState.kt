@@ -3,6 +3,7 @@ package com.protocol180.aggregator.states
 import com.protocol180.aggregator.contracts.RewardsContract
 import net.corda.core.contracts.BelongsToContract
 import net.corda.core.contracts.ContractState
+import net.corda.core.crypto.SecureHash
 import net.corda.core.identity.AbstractParty
 import net.corda.core.identity.Party
 import java.time.Instant
@@ -11,9 +12,12 @@ import java.time.Instant
  * State acting as rewards receipt for providers who have shared data during aggregations
  * @see provider - provider entity sharing data that has been rewarded for
  * @see host - host running enclave that computes the Data Output
- * @see decryptedRewardsBytes - rewards bytes for provider generated by encalve based rewards engine
+ * @see decryptedRewardsBytes - rewards bytes for provider generated by encalve based rewards engine, empty when the
+ * state only holds their hash
  * @see enclaveAttestation - Enclave attestation bytes for verification
  * @see flowTopic - Flow topic that resulted in creation of state
+ * @see rewardsHash - SHA-256 hash of the rewards bytes. States issued together by the host hold the hash only, as every
+ * provider receives the whole transaction, and each provider keeps its rewards bytes off-ledger
  */
 @BelongsToContract(RewardsContract::class)
 data class RewardsState(val provider: Party,
@@ -21,7 +25,8 @@ data class RewardsState(val provider: Party,
                         val decryptedRewardsBytes: ByteArray,
                         val dateCreated: Instant,
                         val enclaveAttestation: ByteArray,
-                        val flowTopic: String) : ContractState {
+                        val flowTopic: String,
+                        val rewardsHash: SecureHash? = null) : ContractState {
 
     /**
      *  This property holds a list of the nodes which can "use" this state in a valid transaction. In this case, the
@@ -40,6 +45,7 @@ data class RewardsState(val provider: Party,
         if (dateCreated != other.dateCreated) return false
         if (enclaveAttestation != other.enclaveAttestation) return false
         if (flowTopic != other.flowTopic) return false
+        if (rewardsHash != other.rewardsHash) return false
 
         return true
     }
@@ -51,6 +57,7 @@ data class RewardsState(val provider: Party,
         result = 31 * result + dateCreated.hashCode()
         result = 31 * result + enclaveAttestation.hashCode()
         result = 31 * result + flowTopic.hashCode()
+        result = 31 * result + (rewardsHash?.hashCode() ?: 0)
         return result
     }
 
@@ -0,0 +1,110 @@
+package com.protocol180.aggregator.contracts
+
+import com.protocol180.aggregator.states.RewardsState
+import net.corda.core.crypto.SecureHash
+import net.corda.core.identity.CordaX500Name
+import net.corda.testing.core.TestIdentity
+import net.corda.testing.node.MockServices
+import net.corda.testing.node.ledger
+import org.junit.Test
+import java.time.Instant
+
+class RewardsContractTest {
+    private val ledgerServices = MockServices(listOf("com.protocol180.aggregator.contracts"))
+    private val host = TestIdentity(CordaX500Name("Host", "London", "GB"))
+    private val otherHost = TestIdentity(CordaX500Name("OtherHost", "Paris", "FR"))
+    private val provider1 = TestIdentity(CordaX500Name("Provider1", "New York", "US"))
+    private val provider2 = TestIdentity(CordaX500Name("Provider2", "Singapore", "SG"))
+    private val rewardsBytes = "rewards".toByteArray()
+    private val attestationBytes = "attestation".toByteArray()
+
+    private fun rewardsState(provider: TestIdentity, host: TestIdentity = this.host) =
+            RewardsState(provider.party, host.party, rewardsBytes, Instant.now(), attestationBytes, "flowTopic")
+
+    private fun batchedRewardsState(provider: TestIdentity, host: TestIdentity = this.host) =
+            RewardsState(provider.party, host.party, ByteArray(0), Instant.now(), attestationBytes, "flowTopic",
+                    SecureHash.sha256(rewardsBytes))
+
+    @Test
+    fun singleRewardsStateVerifies() {
+        ledgerServices.ledger {
+            transaction {
+                output(RewardsContract.ID, rewardsState(provider1))
+                command(listOf(host.publicKey, provider1.publicKey), RewardsContract.Commands.Create())
+                verifies()
+            }
+        }
+    }
+
+    @Test
+    fun rewardsStatesIssuedTogetherVerify() {
+        ledgerServices.ledger {
+            transaction {
+                output(RewardsContract.ID, batchedRewardsState(provider1))
+                output(RewardsContract.ID, batchedRewardsState(provider2))
+                command(listOf(host.publicKey, provider1.publicKey, provider2.publicKey), RewardsContract.Commands.Create())
+                verifies()
+            }
+        }
+    }
+
+    @Test
+    fun rewardsStatesIssuedTogetherMustOnlyHoldTheirHash() {
+        ledgerServices.ledger {
+            transaction {
+                output(RewardsContract.ID, rewardsState(provider1))
+                output(RewardsContract.ID, rewardsState(provider2))
+                command(listOf(host.publicKey, provider1.publicKey, provider2.publicKey), RewardsContract.Commands.Create())
+                failsWith("Rewards states issued together must only hold the hash of their rewards")
+            }
+        }
+    }
+
+    @Test
+    fun rewardsMustMatchTheirHash() {
+        ledgerServices.ledger {
+            transaction {
+                output(RewardsContract.ID, rewardsState(provider1).copy(rewardsHash = SecureHash.sha256("other".toByteArray())))
+                command(listOf(host.publicKey, provider1.publicKey), RewardsContract.Commands.Create())
+                failsWith("The rewards held must match their hash")
+            }
+        }
+    }
+
+    @Test
+    fun rewardsStatesIssuedTogetherMustBeForDistinctProviders() {
+        ledgerServices.ledger {
+            transaction {
+                output(RewardsContract.ID, batchedRewardsState(provider1))
+                output(RewardsContract.ID, batchedRewardsState(provider1))
+                command(listOf(host.publicKey, provider1.publicKey), RewardsContract.Commands.Create())
+                failsWith("Rewards states issued together must be for distinct providers")
+            }
+        }
+    }
+
+    @Test
+    fun rewardsStatesIssuedTogetherMustHaveTheSameHost() {
+        ledgerServices.ledger {
+            transaction {
+                output(RewardsContract.ID, batchedRewardsState(provider1))
+                output(RewardsContract.ID, batchedRewardsState(provider2, otherHost))
+                command(listOf(host.publicKey, otherHost.publicKey, provider1.publicKey, provider2.publicKey),
+                        RewardsContract.Commands.Create())
+                failsWith("Rewards states issued together must be issued by the same host")
+            }
+        }
+    }
+
+    @Test
+    fun everyProviderMustSign() {
+        ledgerServices.ledger {
+            transaction {
+                output(RewardsContract.ID, batchedRewardsState(provider1))
+                output(RewardsContract.ID, batchedRewardsState(provider2))
+                command(listOf(host.publicKey, provider1.publicKey), RewardsContract.Commands.Create())
+                failsWith("Only the providers and host may sign the Rewards State Transaction")
+            }
+        }
+    }
+}
@@ -1,21 +1,31 @@
 package com.protocol180.aggregator.enclave;
 
+import com.protocol180.aggregator.commons.HostCommand;
+import com.protocol180.aggregator.commons.MailEnvelope;
 import com.protocol180.aggregator.commons.MailType;
 import com.r3.conclave.enclave.Enclave;
 import com.r3.conclave.mail.EnclaveMail;
+import org.apache.avro.AvroRuntimeException;
 import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileConstants;
 import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.file.SeekableByteArrayInput;
 import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.io.DatumReader;
 
-import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.*;
-
-;
+import java.util.function.Consumer;
 
 /**
  * AggregationEnclave is an interface that is the basis for based 180Protocol Coalition applications  to compute data aggregations and rewards
@@ -27,94 +37,640 @@ import java.util.*;
  * workflow where any data can be aggregated and rewarded for. For this the host provides to the enclave an Apache Avro schema file called the 'envelopeSchema',
  * containing the necessary aggregate input, output and rewards sub-schemas.The schemas act as an instruction set for
  * the enclave to perform the data output computation and rewards calculation for the consumers and providers respectively.
+ * A single AggregationEnclave serves any number of concurrent aggregations, each in its own session started by the host
+ * with a {@link HostCommand}. Mail of different sessions is processed concurrently, mail of one session one at a time.
+ * The local store and schemas returned by the accessors below are those of the session of the mail being processed,
+ * so subclasses must keep any other aggregation state in them rather than in their own fields.
  */
 public abstract class AggregationEnclave extends Enclave {
 
-    //Enclave local store
-    protected HashMap<PublicKey, byte[]> clientToEncryptedDataMap;
-    protected HashMap<PublicKey, ArrayList<GenericRecord>> clientToRawDataMap;
-    protected Schema envelopeSchema;
-    protected Schema aggregateInputSchema;
-    protected Schema aggregateOutputSchema;
-    protected Schema rewardsOutputSchema;
+    //session used for mail without a session id in its routing hint and schemas sent by hosts predating sessions
+    static final String DEFAULT_SESSION_ID = "default";
+
+    //state of every aggregation session served by this enclave, guarded by the sessions lock
+    private final Map<String, AggregationSession> sessions = new HashMap<>();
+
+    //session of the mail being processed by the current thread, read by the accessors subclasses compute outputs with
+    private final ThreadLocal<AggregationSession> currentSession = new ThreadLocal<>();
+
+    //outputs of recent aggregations by their inputs, least recently used first, guarded by the sessions lock
+    private final LinkedHashMap<String, CachedResult> resultCache = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+            return size() > getResultCacheSize();
+        }
+    };
+
+    //inputs of providers uploading incrementally by baseline key, least recently used first, guarded by the sessions lock
+    private final LinkedHashMap<String, RetainedInput> retainedInputs = new LinkedHashMap<String, RetainedInput>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RetainedInput> eldest) {
+            return size() > getRetainedInputCapacity();
+        }
+    };
 
-    String clientTypeForCurrRequest = null;
+    //number of inputs retained as sized by the host to its coalition, -1 until set, guarded by the sessions lock
+    private int retainedInputCapacity = -1;
 
     @Override
-    final protected byte[] receiveFromUntrustedHost(byte[] schemaBytes) {
+    final protected byte[] receiveFromUntrustedHost(byte[] commandBytes) {
         // This is used for host->enclave calls so we don't have to think about authentication.
+        HostCommand command = HostCommand.deserialize(commandBytes);
+        if (command == null)
+            return initializeSession(DEFAULT_SESSION_ID, commandBytes);
 
-        envelopeSchema = new Schema.Parser().parse(new String(schemaBytes));
-        aggregateInputSchema = envelopeSchema.getField("aggregateInput").schema();
-        aggregateOutputSchema = envelopeSchema.getField("aggregateOutput").schema();
-        rewardsOutputSchema = envelopeSchema.getField("rewardsOutput").schema();
+        switch (command.getType()) {
+            case INIT_SESSION:
+                return initializeSession(command.getSessionId(), command.getPayload());
+            case CLOSE_SESSION:
+                synchronized (sessions) {
+                    sessions.remove(command.getSessionId());
+                }
+                return "Session Closed".getBytes();
+            case SET_OUTPUT_CODEC:
+                return setOutputCodec(command.getSessionId(), new String(command.getPayload(), StandardCharsets.UTF_8));
+            case LOAD_CACHED_OUTPUT:
+                return loadCachedOutput(command.getSessionId());
+            case SET_RETAINED_INPUT_COUNT:
+                return setRetainedInputCount(command.getSessionId(), new String(command.getPayload(), StandardCharsets.UTF_8));
+            default:
+                throw new IllegalArgumentException("Unsupported host command " + command.getType());
+        }
+    }
 
-        clearLocalStore();
+    private byte[] initializeSession(String sessionId, byte[] schemaBytes) {
+        AggregationSession session = new AggregationSession(new Schema.Parser().parse(new String(schemaBytes)));
 
+        synchronized (sessions) {
+            //initializing an existing session starts it over with an empty local store
+            sessions.put(sessionId, session);
+        }
         return "Schema Initialized".getBytes();
     }
 
+    /**
+     * Returns the session with the given id. Only the lookup holds the sessions lock, the session itself is guarded by
+     * its own lock.
+     */
+    private AggregationSession getSession(String sessionId, String request) {
+        synchronized (sessions) {
+            AggregationSession session = sessions.get(sessionId);
+            if (session == null)
+                throw new IllegalStateException(request + " for unknown aggregation session " + sessionId);
+            return session;
+        }
+    }
+
+    /**
+     * Sets the codec the aggregate and rewards outputs of a session are compressed with. Outputs are not compressed
+     * unless a codec is set. Inputs need no such setting, as every Avro data file names the codec it was written with.
+     */
+    private byte[] setOutputCodec(String sessionId, String codecName) {
+        CodecFactory outputCodec;
+        try {
+            outputCodec = CodecFactory.fromString(codecName);
+        } catch (AvroRuntimeException e) {
+            throw new IllegalArgumentException("Unsupported output codec " + codecName, e);
+        }
+        AggregationSession session = getSession(sessionId, "Output codec set");
+        synchronized (session) {
+            session.outputCodec = outputCodec;
+            session.resultCacheScope = session.envelopeSchemaFingerprint + ":" + codecName;
+        }
+        return "Output Codec Set".getBytes();
+    }
+
+    /**
+     * Sizes the provider inputs the enclave retains to the coalition of the host, one input per provider and data type,
+     * so a retained input isn't evicted by those of the other providers before its provider's next aggregation.
+     * Inputs retained beyond the new size are evicted, least recently used first.
+     */
+    private byte[] setRetainedInputCount(String sessionId, String retainedInputCount) {
+        if (!retainedInputCount.matches("[0-9]{1,9}"))
+            throw new IllegalArgumentException("Retained input count must be a number, was " + retainedInputCount);
+        getSession(sessionId, "Retained input count set");
+        synchronized (sessions) {
+            retainedInputCapacity = Integer.parseInt(retainedInputCount);
+            Iterator<String> retainedInputKeys = retainedInputs.keySet().iterator();
+            while (retainedInputs.size() > getRetainedInputCapacity() && retainedInputKeys.hasNext()) {
+                retainedInputKeys.next();
+                retainedInputKeys.remove();
+            }
+        }
+        return "Retained Input Count Set".getBytes();
+    }
+
+    /**
+     * Loads the outputs of an earlier aggregation over the inputs whose digests the providers of the session reported,
+     * if the enclave still holds them. The session then serves consumers and rewards from these outputs, without its
+     * providers sending their data.
+     */
+    private byte[] loadCachedOutput(String sessionId) {
+        AggregationSession session = getSession(sessionId, "Cached output requested");
+        synchronized (session) {
+            String resultCacheKey = getResultCacheKey(session);
+            CachedResult result;
+            synchronized (sessions) {
+                result = resultCacheKey == null ? null : resultCache.get(resultCacheKey);
+            }
+            if (result == null || !result.isComplete(session.providerInputDigests.values()))
+                return "No Cached Output".getBytes();
+            session.cachedResult = result;
+            session.aggregateOutputCache = result.aggregateOutput;
+            return HostCommand.CACHED_OUTPUT_LOADED.getBytes();
+        }
+    }
+
+    /**
+     * getResultCacheSize - the number of aggregations whose outputs the enclave keeps, for repeat aggregations over
+     * unchanged inputs. The outputs never leave the enclave unencrypted, and are lost when the enclave is unloaded.
+     * Returning 0 disables the cache.
+     **/
+    protected int getResultCacheSize() {
+        return 16;
+    }
+
+    /**
+     * getRetainedInputCount - the number of provider inputs the enclave keeps for providers uploading incrementally,
+     * who then only send the rows added since their last aggregation, until the host sizes them to its coalition. Inputs are kept as a single Avro data file merged
+     * from the files received and never leave the enclave. They outlive the session they were received in, but are lost
+     * when the enclave is unloaded, providers then upload all their rows again.
+     * Returning 0 disables incremental uploads.
+     **/
+    protected int getRetainedInputCount() {
+        return 16;
+    }
+
+    /**
+     * Returns the number of provider inputs retained: the count set by the host if any, unless retention is disabled.
+     * Must be called holding the sessions lock.
+     */
+    private int getRetainedInputCapacity() {
+        int retainedInputCount = getRetainedInputCount();
+        return retainedInputCount <= 0 || retainedInputCapacity < 0 ? retainedInputCount : retainedInputCapacity;
+    }
+
+    /**
+     * Stores the input digest a provider reported for the result cache, as its identity token and the digest of the
+     * encoded records of its input. The key of the provider's outputs is the digest of both, so it only matches the
+     * outputs of earlier aggregations over the same records from the provider holding the token, which is only ever
+     * sent encrypted for the enclave. The records the provider sends are checked against the digest.
+     */
+    private void reportProviderInputDigest(AggregationSession session, PublicKey providerKey, String inputDigest) {
+        if (!inputDigest.matches("[0-9A-Fa-f]{64}:[0-9A-Fa-f]{64}"))
+            throw new IllegalArgumentException("Provider input digest must be a SHA-256 identity token and records hash");
+        String tokenAndRecordDigest = inputDigest.toUpperCase();
+        session.providerInputDigests.put(providerKey, toHex(newRecordDigest().digest(tokenAndRecordDigest.getBytes(StandardCharsets.UTF_8))));
+        session.reportedRecordDigests.put(providerKey, tokenAndRecordDigest.substring(65));
+        session.receivedRecordDigests.remove(providerKey);
+        session.verifiedInputs.remove(providerKey);
+    }
+
+    /**
+     * Starts the digest of the records a provider that reported an input digest sends over.
+     */
+    private void restartRecordDigest(AggregationSession session, PublicKey providerKey) {
+        if (!session.reportedRecordDigests.containsKey(providerKey))
+            return;
+        session.receivedRecordDigests.put(providerKey, newRecordDigest());
+        session.verifiedInputs.remove(providerKey);
+    }
+
+    /**
+     * Adds the records of a provider's Avro data file to the digest of the records received from it: the binary
+     * encoding of the records, in order, which doesn't depend on how the data was compressed, chunked, or split into
+     * a baseline and the rows added since.
+     */
+    private void digestRecords(AggregationSession session, PublicKey providerKey, byte[] avroBytes) {
+        MessageDigest recordDigest = session.receivedRecordDigests.get(providerKey);
+        if (recordDigest == null)
+            return;
+        try (DataFileReader<GenericRecord> dataFileReader = new DataFileReader<>(new SeekableByteArrayInput(avroBytes), new GenericDatumReader<GenericRecord>())) {
+            while (dataFileReader.hasNext()) {
+                recordDigest.update(dataFileReader.nextBlock());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to decode data received from provider", e);
+        }
+    }
+
+    /**
+     * Checks the records received from a provider, once its upload is complete, against the digest it reported.
+     */
+    private void verifyRecordDigest(AggregationSession session, PublicKey providerKey) {
+        MessageDigest recordDigest = session.receivedRecordDigests.remove(providerKey);
+        if (recordDigest == null)
+            return;
+        if (!toHex(recordDigest.digest()).equals(session.reportedRecordDigests.get(providerKey)))
+            throw new IllegalArgumentException("Provider data does not match the input digest the provider reported");
+        session.verifiedInputs.add(providerKey);
+    }
+
+    private static MessageDigest newRecordDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02X", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Returns the key of the outputs of the aggregation over the inputs of the session: the digests of the inputs
+     * reported by the providers, in the scope of the session's schema and output codec. Returns null if the cache is
+     * disabled or no provider reported a digest.
+     */
+    private String getResultCacheKey(AggregationSession session) {
+        if (getResultCacheSize() <= 0 || session.providerInputDigests.isEmpty())
+            return null;
+        List<String> digests = new ArrayList<>(session.providerInputDigests.values());
+        Collections.sort(digests);
+        return session.resultCacheScope + ":" + String.join(",", digests);
+    }
+
+    /**
+     * Returns the result the outputs computed from the provider data of the session are gathered in, or null if they
+     * can't be cached: because not every provider, or not only providers, that sent data reported a digest, because a
+     * provider's records weren't checked against its digest, or because providers reported the same digest, whose
+     * rewards would then be told apart by provider rather than input. The result is only published to the cache once
+     * complete, see {@link #publishResultIfComplete(AggregationSession)}.
+     */
+    private CachedResult getResultToCache(AggregationSession session) {
+        if (session.resultToCache == null) {
+            Collection<String> digests = session.providerInputDigests.values();
+            if (getResultCacheKey(session) == null || !session.providerInputDigests.keySet().equals(getProviders(session))
+                    || !session.verifiedInputs.equals(session.providerInputDigests.keySet())
+                    || new HashSet<>(digests).size() != digests.size())
+                return null;
+            session.resultToCache = new CachedResult();
+        }
+        return session.resultToCache;
+    }
+
+    /**
+     * Publishes the outputs gathered in the session to the cache once it holds the aggregate output and the rewards
+     * of every provider. The session serves its later requests from the published result, which is never modified
+     * again as other sessions may read it.
+     */
+    private void publishResultIfComplete(AggregationSession session) {
+        CachedResult result = session.resultToCache;
+        if (result == null || !result.isComplete(session.providerInputDigests.values()))
+            return;
+        synchronized (sessions) {
+            resultCache.put(getResultCacheKey(session), result);
+        }
+        session.cachedResult = result;
+        session.resultToCache = null;
+    }
+
+    /**
+     * Returns the number of aggregation sessions currently held by the enclave.
+     */
+    protected int getSessionCount() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    /**
+     * Returns the session of the mail being processed, whose local store and schemas the accessors below return.
+     */
+    private AggregationSession getCurrentSession() {
+        AggregationSession session = currentSession.get();
+        if (session == null)
+            throw new IllegalStateException("No aggregation session is being processed");
+        return session;
+    }
+
+    /**
+     * getClientToEncryptedDataMap - the Avro payloads received from each provider of the current session that are not
+     * decoded yet, see {@link #isDecodedOnArrival()}.
+     **/
+    protected HashMap<PublicKey, byte[]> getClientToEncryptedDataMap() {
+        return getCurrentSession().clientToEncryptedDataMap;
+    }
 
+    /**
+     * getClientToRawDataMap - the records decoded from each provider's payload in the current session, when the
+     * columnar data store is not used.
+     **/
+    protected HashMap<PublicKey, ArrayList<GenericRecord>> getClientToRawDataMap() {
+        return getCurrentSession().clientToRawDataMap;
+    }
+
+    /**
+     * getDataStore - the columnar store of all provider rows of the current session, filled instead of the
+     * clientToRawDataMap when useColumnarDataStore is enabled.
+     **/
+    protected ColumnarDataStore getDataStore() {
+        return getCurrentSession().dataStore;
+    }
+
+    protected Schema getEnvelopeSchema() {
+        return getCurrentSession().envelopeSchema;
+    }
+
+    protected Schema getAggregateInputSchema() {
+        return getCurrentSession().aggregateInputSchema;
+    }
+
+    protected Schema getAggregateOutputSchema() {
+        return getCurrentSession().aggregateOutputSchema;
+    }
+
+    protected Schema getRewardsOutputSchema() {
+        return getCurrentSession().rewardsOutputSchema;
+    }
+
+
+    /**
+     * convertEncryptedClientDataToRawData - decodes the Avro payload received from each provider into GenericRecords
+     * following the 'aggregateInput' sub-schema and stores them against the provider key in the clientToRawDataMap.
+     * Payloads are decoded straight from the mail bytes, the enclave filesystem is never used. Payloads that were
+     * already decoded on arrival (see {@link #isDecodedOnArrival()}) are not decoded again.
+     **/
     final protected void convertEncryptedClientDataToRawData() {
-        DatumReader<GenericRecord> datumReader = new GenericDatumReader<>(aggregateInputSchema);
-        clientToEncryptedDataMap.entrySet().forEach(entry ->
-                {
-                    try {
-                        File dataFile = new File("dataFile");
-                        Files.write(dataFile.toPath(), entry.getValue());
-                        DataFileReader<GenericRecord> dataFileReader = new DataFileReader<>(dataFile, datumReader);
-                        ArrayList<GenericRecord> recordsForClient = new ArrayList<>();
-                        while (dataFileReader.hasNext()) {
-                            GenericRecord dataRecord = null;
-                            dataRecord = dataFileReader.next(dataRecord);
-                            recordsForClient.add(dataRecord);
-                        }
-                        clientToRawDataMap.put(entry.getKey(), recordsForClient);
-                    } catch (IOException e) {
-                        e.printStackTrace();
+        AggregationSession session = getCurrentSession();
+        Iterator<Map.Entry<PublicKey, byte[]>> pendingPayloads = session.clientToEncryptedDataMap.entrySet().iterator();
+        while (pendingPayloads.hasNext()) {
+            Map.Entry<PublicKey, byte[]> entry = pendingPayloads.next();
+            decodeProviderData(session, entry.getKey(), entry.getValue(), false);
+            pendingPayloads.remove();
+        }
+    }
+
+    /**
+     * isDecodedOnArrival - when enabled (the default) each provider payload is decoded into the local store as soon as
+     * its mail is delivered, and its encoded bytes are dropped. The consumer request then only pays for the aggregation
+     * itself, and the enclave never holds a provider's encoded payload along with its records. The host delivers each
+     * provider's payload, or chunk of it, as soon as it received it, so the enclave decodes it while the host is still
+     * fetching data from the remaining providers.
+     * Enclaves that need the raw payload bytes can override this to return false, in which case payloads are kept in
+     * the clientToEncryptedDataMap until convertEncryptedClientDataToRawData is called.
+     **/
+    protected boolean isDecodedOnArrival() {
+        return true;
+    }
+
+    /**
+     * useColumnarDataStore - when enabled provider rows are decoded into the primitive typed {@link ColumnarDataStore}
+     * returned by getDataStore, through a single reused GenericRecord, and clientToRawDataMap is left empty. This keeps
+     * a fraction of the heap used by GenericRecord lists for large datasets. Disabled by default so enclaves written
+     * against clientToRawDataMap keep working.
+     **/
+    protected boolean useColumnarDataStore() {
+        return false;
+    }
+
+    /**
+     * Decodes a provider's Avro data file into the session's local store and returns the number of records decoded.
+     **/
+    private int decodeProviderData(AggregationSession session, PublicKey providerKey, byte[] avroBytes, boolean append) {
+        int[] recordCount = {0};
+        try {
+            if (useColumnarDataStore()) {
+                ColumnarDataStore dataStore = session.dataStore;
+                if (!append)
+                    dataStore.resetProvider(providerKey);
+                int providerId = dataStore.addProvider(providerKey);
+                readAggregateInputRecords(session, avroBytes, true, dataRecord -> {
+                    dataStore.appendRecord(providerId, dataRecord);
+                    recordCount[0]++;
+                });
+            } else {
+                ArrayList<GenericRecord> recordsForClient = append ? session.clientToRawDataMap.get(providerKey) : null;
+                if (recordsForClient == null) {
+                    recordsForClient = new ArrayList<>();
+                    session.clientToRawDataMap.put(providerKey, recordsForClient);
+                }
+                ArrayList<GenericRecord> records = recordsForClient;
+                readAggregateInputRecords(session, avroBytes, false, dataRecord -> {
+                    records.add(dataRecord);
+                    recordCount[0]++;
+                });
+            }
+            return recordCount[0];
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to decode data received from provider", e);
+        }
+    }
+
+    /**
+     * decodeProviderDataChunk - decodes a chunk of a provider's chunked upload, appending its records to those of the
+     * previous chunks. Every chunk is a standalone Avro data file, and it is decoded on arrival even when isDecodedOnArrival
+     * is disabled, so the enclave never holds more than one chunk of encoded data. Chunks must arrive in order, a first
+     * chunk starts the provider's upload over, unless the upload builds on a baseline. Returns the number of records
+     * decoded.
+     **/
+    private int decodeProviderDataChunk(AggregationSession session, PublicKey providerKey, MailEnvelope mailEnvelope, byte[] avroBytes) {
+        int chunkIndex = mailEnvelope.getChunkIndex();
+        Integer expectedChunkIndex = session.providerChunkIndexes.get(providerKey);
+        if (chunkIndex != 0 && (expectedChunkIndex == null || chunkIndex != expectedChunkIndex))
+            throw new IllegalStateException("Provider data chunk " + chunkIndex + " received out of order, expected chunk "
+                    + (expectedChunkIndex == null ? 0 : expectedChunkIndex));
+        ProviderBaseline providerBaseline = session.providerBaselines.get(providerKey);
+        if (chunkIndex == 0) {
+            if (providerBaseline != null && providerBaseline.inputFiles.size() > providerBaseline.baselineFileCount)
+                throw new IllegalStateException("Upload of the rows added since a provider's baseline can't be restarted");
+            session.clientToEncryptedDataMap.remove(providerKey);
+        }
+        int recordCount = decodeProviderData(session, providerKey, avroBytes, chunkIndex != 0 || providerBaseline != null);
+        if (mailEnvelope.isLastChunk())
+            session.providerChunkIndexes.remove(providerKey);
+        else
+            session.providerChunkIndexes.put(providerKey, chunkIndex + 1);
+        return recordCount;
+    }
+
+    /**
+     * Starts a provider's incremental upload from the rows it claims the enclave retained from its last aggregation:
+     * the number of rows of the input retained under its baseline token. If the enclave holds exactly these rows they
+     * are decoded into the local store, otherwise the provider starts from no rows. Returns the number of rows the
+     * upload builds on, the provider then sends only the rows after them.
+     **/
+    private int loadProviderBaseline(AggregationSession session, PublicKey providerKey, String baselineClaim) {
+        String[] claim = baselineClaim.split(":");
+        if (claim.length != 2 || !claim[0].matches("[0-9A-Fa-f]{64}") || !claim[1].matches("[0-9]{1,9}"))
+            throw new IllegalArgumentException("Provider baseline must be a SHA-256 token and a row count");
+        if (getProviders(session).contains(providerKey) || session.providerBaselines.containsKey(providerKey))
+            throw new IllegalStateException("Provider baseline must be claimed before the provider's data is sent");
+
+        ProviderBaseline providerBaseline = new ProviderBaseline(session.envelopeSchemaFingerprint + ":" + claim[0].toUpperCase());
+        RetainedInput retainedInput;
+        synchronized (sessions) {
+            retainedInput = retainedInputs.get(providerBaseline.retainedInputKey);
+        }
+        restartRecordDigest(session, providerKey);
+        if (retainedInput != null && retainedInput.rowCount == Integer.parseInt(claim[1])) {
+            providerBaseline.addInputFile(retainedInput.inputFile, decodeProviderData(session, providerKey, retainedInput.inputFile, true));
+            providerBaseline.baselineFileCount = providerBaseline.inputFiles.size();
+            digestRecords(session, providerKey, retainedInput.inputFile);
+        }
+        session.providerBaselines.put(providerKey, providerBaseline);
+        return providerBaseline.rowCount;
+    }
+
+    /**
+     * Retains the rows a provider uploading incrementally holds in the session, its baseline and the rows it added, for
+     * the provider's next aggregation. Called once the provider's rewards are computed, which is when the provider
+     * moves its watermark past these rows. The files are merged into one so the retained input doesn't grow by a file
+     * with every aggregation.
+     **/
+    private void retainProviderInput(AggregationSession session, PublicKey providerKey) throws IOException {
+        ProviderBaseline providerBaseline = session.providerBaselines.remove(providerKey);
+        if (providerBaseline == null || getRetainedInputCount() <= 0)
+            return;
+        RetainedInput retainedInput = new RetainedInput(mergeInputFiles(providerBaseline.inputFiles), providerBaseline.rowCount);
+        synchronized (sessions) {
+            retainedInputs.put(providerBaseline.retainedInputKey, retainedInput);
+        }
+    }
+
+    /**
+     * Merges Avro data files written with the same schema into a single file, in order. Blocks are copied over without
+     * decoding their records, recompressed with the codec of the first file where the codecs differ.
+     **/
+    private static byte[] mergeInputFiles(List<byte[]> inputFiles) throws IOException {
+        if (inputFiles.size() == 1)
+            return inputFiles.get(0);
+        ByteArrayOutputStream mergedFile = new ByteArrayOutputStream();
+        try (DataFileWriter<GenericRecord> dataFileWriter = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>())) {
+            String mergedCodec = null;
+            for (byte[] inputFile : inputFiles) {
+                try (DataFileReader<GenericRecord> dataFileReader = new DataFileReader<>(new SeekableByteArrayInput(inputFile), new GenericDatumReader<GenericRecord>())) {
+                    String codec = dataFileReader.getMetaString(DataFileConstants.CODEC);
+                    if (codec == null)
+                        codec = DataFileConstants.NULL_CODEC;
+                    if (mergedCodec == null) {
+                        mergedCodec = codec;
+                        dataFileWriter.setCodec(CodecFactory.fromString(mergedCodec));
+                        dataFileWriter.create(dataFileReader.getSchema(), mergedFile);
                     }
+                    dataFileWriter.appendAllFrom(dataFileReader, !codec.equals(mergedCodec));
                 }
-        );
+            }
+        }
+        return mergedFile.toByteArray();
+    }
+
+    /**
+     * Outputs are computed over complete provider data only, a chunked upload still in progress fails the request.
+     **/
+    private void checkProviderUploadsComplete(AggregationSession session) {
+        if (!session.providerChunkIndexes.isEmpty())
+            throw new IllegalStateException("Data upload of " + session.providerChunkIndexes.size() + " provider(s) is incomplete");
+    }
+
+    /**
+     * readAggregateInputRecords - reads an in-memory Avro data file written with the 'aggregateInput' sub-schema and
+     * passes every record to the given consumer. When reuseRecord is set a single GenericRecord instance is refilled
+     * for every row, so the consumer must copy out any values it wants to keep before returning.
+     **/
+    protected void readAggregateInputRecords(byte[] avroBytes, boolean reuseRecord, Consumer<GenericRecord> recordConsumer) throws IOException {
+        readAggregateInputRecords(getCurrentSession(), avroBytes, reuseRecord, recordConsumer);
+    }
+
+    private void readAggregateInputRecords(AggregationSession session, byte[] avroBytes, boolean reuseRecord, Consumer<GenericRecord> recordConsumer) throws IOException {
+        try (DataFileReader<GenericRecord> dataFileReader = new DataFileReader<>(new SeekableByteArrayInput(avroBytes), session.aggregateInputDatumReader)) {
+            GenericRecord dataRecord = null;
+            while (dataFileReader.hasNext()) {
+                dataRecord = dataFileReader.next(reuseRecord ? dataRecord : null);
+                recordConsumer.accept(dataRecord);
+            }
+        }
     }
 
     /**
-     * createRewardsDataOutput - calculates rewards for the data provider(s). Reward calculation must be provider specific.
+     * aggregate - computes the given {@link AggregationQuery} declarations over the rows in the data store with the
+     * {@link AggregationEngine}, in a single scan for all queries. Requires useColumnarDataStore to be enabled.
+     * Results are returned in the order of the queries.
+     **/
+    protected List<AggregationResult> aggregate(AggregationQuery... queries) {
+        if (!useColumnarDataStore())
+            throw new IllegalStateException("Aggregation queries run over the columnar data store, enable useColumnarDataStore");
+        return new AggregationEngine(getDataStore()).execute(queries);
+    }
+
+    /**
+     * writeRewardsDataOutput - calculates rewards for the data provider(s). Reward calculation must be provider specific.
      * In the future a Rewards Engine will be inserted for developers to utilize for reward factor calculations.
      * This method must be overridden by the coalition application developer to contain a reward calculation algorithm that
-     * accepts a public key for the data provider for which the rewards are being calculated.
-     * The output must be an avro serialized file containing Avro GenericRecord.
-     * The GenericRecord must follow the sub-schema defined as 'rewardOutput' under the 'envelopeSchema'
+     * accepts a public key for the data provider for which the rewards are being calculated, and appends the resulting
+     * Avro GenericRecord(s) to the given DataFileWriter. The writer is already created with the 'rewardsOutput'
+     * sub-schema defined under the 'envelopeSchema' and writes to an in-memory buffer that is encrypted and sent to
+     * the provider once this returns. Implementations must not close the writer.
+     * Enclaves written against the File based contract extend {@link FileOutputAggregationEnclave} instead.
+     * @see org.apache.avro.generic.GenericRecord
+     **/
+    protected abstract void writeRewardsDataOutput(PublicKey providerKey, DataFileWriter<GenericRecord> dataFileWriter) throws IOException, UnsupportedDataTypeException;
+
+    /**
+     * createRewardsForAllProviders - optional batch variant of {@link #writeRewardsDataOutput(PublicKey, DataFileWriter)}.
+     * Enclaves can override this to calculate the coalition wide denominators once and every provider's numerators in
+     * a single pass over the provider data, returning one GenericRecord following the 'rewardsOutput' sub-schema per
+     * provider. It is called once per aggregation, on the first rewards request, and each later rewards request is
+     * answered from the serialized results. Returning null (the default) falls back to calling writeRewardsDataOutput
+     * per provider.
      * @see org.apache.avro.generic.GenericRecord
      **/
-    protected abstract File createRewardsDataOutput(PublicKey providerKey) throws IOException, UnsupportedDataTypeException;
+    protected Map<PublicKey, GenericRecord> createRewardsForAllProviders() throws IOException, UnsupportedDataTypeException {
+        return null;
+    }
 
     /**
-     * createAggregateDataOutput - calculates a data output for the data consumer(s). Currently, the same data output is
+     * writeAggregateDataOutput - calculates a data output for the data consumer(s). Currently, the same data output is
      * computed for all data consumers. This method must be overridden by the coalition application developer to contain a
      * data transformation algorithm that transforms data from the specified 'aggregateInput' sub-schema to the 'aggregateOutput'
-     * sub-schema. The output must be an avro serialized file containing Avro GenericRecord.
-     * The GenericRecord must follow the sub-schema defined as 'aggregateOutput' under the 'envelopeSchema'
+     * sub-schema, appending the resulting Avro GenericRecord(s) to the given DataFileWriter. The writer is already
+     * created with the 'aggregateOutput' sub-schema defined under the 'envelopeSchema' and writes to an in-memory buffer
+     * that is encrypted and sent to the consumer once this returns. Implementations must not close the writer.
+     * Enclaves written against the File based contract extend {@link FileOutputAggregationEnclave} instead.
      * @see org.apache.avro.generic.GenericRecord
      **/
-    protected abstract File createAggregateDataOutput() throws IOException, UnsupportedDataTypeException;
+    protected abstract void writeAggregateDataOutput(DataFileWriter<GenericRecord> dataFileWriter) throws IOException, UnsupportedDataTypeException;
+
+    /**
+     * Serializes an output into the session's reused in-memory output buffer and returns the Avro data file bytes.
+     **/
+    private byte[] serializeOutput(AggregationSession session, Schema outputSchema, GenericDatumWriter<GenericRecord> datumWriter, OutputWriter outputWriter) throws IOException, UnsupportedDataTypeException {
+        session.outputBuffer.reset();
+        try (DataFileWriter<GenericRecord> dataFileWriter = new DataFileWriter<>(datumWriter)) {
+            dataFileWriter.setCodec(session.outputCodec);
+            dataFileWriter.create(outputSchema, session.outputBuffer);
+            outputWriter.write(dataFileWriter);
+        }
+        return session.outputBuffer.toByteArray();
+    }
 
-    void initializeLocalStore() {
-        clientToEncryptedDataMap = new HashMap();
-        clientToRawDataMap = new HashMap();
+    private interface OutputWriter {
+        void write(DataFileWriter<GenericRecord> dataFileWriter) throws IOException, UnsupportedDataTypeException;
     }
 
-    void clearLocalStore() {
-        clientToEncryptedDataMap = null;
-        clientToRawDataMap = null;
+    private int getProviderCount(AggregationSession session) {
+        return getProviders(session).size();
     }
 
-    private void putUnencryptedMailToClient(PublicKey sender, byte[] mailBytes) {
-        clientToEncryptedDataMap.put(sender, mailBytes);
+    private Set<PublicKey> getProviders(AggregationSession session) {
+        Set<PublicKey> providers = new HashSet<>(session.clientToRawDataMap.keySet());
+        providers.addAll(session.clientToEncryptedDataMap.keySet());
+        for (int providerId = 0; providerId < session.dataStore.getProviderCount(); providerId++) {
+            providers.add(session.dataStore.getProvider(providerId));
+        }
+        return providers;
     }
 
     /**
      * receiveMail function defines the entry point for requests coming into the enclave from the host. The host conveys encrypted
-     * mail bytes from clients along ith a routing hint. See R3 Conclave documentation for more details around
+     * mail bytes from clients along ith a routing hint. The routing hint carries the id of the aggregation session the
+     * mail belongs to ("sessionId:flowId"); the mail is processed against that session's state under the session's own
+     * lock, so mail of one session is processed one at a time while other sessions proceed concurrently. See R3 Conclave documentation for more details around
      * @see com.r3.conclave.mail.EnclaveMail API
      * The receiveMail function executes a data aggregation and reward compute workflow. To determine the right step in the workflow
      * the Enclave determines the MailType from the encrypted mail message from the host. Based on this the enclave
@@ -122,57 +678,167 @@ public abstract class AggregationEnclave extends Enclave {
      * 1. Storing data input from all providers
      * 2. Computing Data Outputs for all consumers
      * 3. Computing Rewards for all providers
+     * Mail the enclave can't process is never left unanswered silently: the failure is thrown back to the host, which
+     * fails the flow waiting for the reply.
      * @see MailType
      **/
     @Override
     protected final void receiveMail(EnclaveMail mail, String routingHint) {
-        final byte[] unencryptedMail = mail.getBodyAsBytes();
+        String sessionId = HostCommand.sessionIdOf(routingHint);
+        if (sessionId == null)
+            sessionId = DEFAULT_SESSION_ID;
+
+        AggregationSession session = getSession(sessionId, "Mail received");
+        synchronized (session) {
+            currentSession.set(session);
+            try {
+                processMail(session, mail, routingHint);
+            } finally {
+                currentSession.remove();
+            }
+        }
+    }
 
+    private void processMail(AggregationSession session, EnclaveMail mail, String routingHint) {
+        final byte[] unencryptedMail = mail.getBodyAsBytes();
 
-        MailType mailType = getMailType(new String(unencryptedMail));
+        MailEnvelope mailEnvelope = MailEnvelope.deserialize(mail.getEnvelope());
+        MailType mailType = getMailType(mailEnvelope, unencryptedMail);
 
         try {
-            if (mailType.equals(MailType.TYPE_PROVIDER)) {
-                clientTypeForCurrRequest = MailType.TYPE_PROVIDER.type;
+            if (MailType.TYPE_PROVIDER.equals(mailType)) {
+                session.clientTypeForCurrRequest = MailType.TYPE_PROVIDER.type;
                 //store mail contents for aggregation
                 System.out.println("Provider mail received.");
-                if (clientToEncryptedDataMap == null && clientToRawDataMap == null) {
-                    initializeLocalStore();
+                PublicKey providerKey = mail.getAuthenticatedSender();
+                ProviderBaseline providerBaseline = session.providerBaselines.get(providerKey);
+                boolean chunked = mailEnvelope != null && mailEnvelope.isChunked();
+                if (chunked) {
+                    int recordCount = decodeProviderDataChunk(session, providerKey, mailEnvelope, unencryptedMail);
+                    if (providerBaseline != null)
+                        providerBaseline.addInputFile(unencryptedMail, recordCount);
+                } else if (providerBaseline != null) {
+                    //the rows added since the provider's baseline are appended to the rows retained for it
+                    providerBaseline.addInputFile(unencryptedMail, decodeProviderData(session, providerKey, unencryptedMail, true));
+                } else if (isDecodedOnArrival()) {
+                    decodeProviderData(session, providerKey, unencryptedMail, false);
+                } else {
+                    session.clientToEncryptedDataMap.put(providerKey, unencryptedMail);
                 }
-                putUnencryptedMailToClient(mail.getAuthenticatedSender(), unencryptedMail);
-                System.out.println(clientToEncryptedDataMap.size());
+                //a payload, or first chunk, starts the provider's records over unless they build on a baseline
+                if (providerBaseline == null && (!chunked || mailEnvelope.getChunkIndex() == 0))
+                    restartRecordDigest(session, providerKey);
+                digestRecords(session, providerKey, unencryptedMail);
+                if (!chunked || mailEnvelope.isLastChunk())
+                    verifyRecordDigest(session, providerKey);
+                //outputs computed so far no longer reflect the full coalition data
+                session.clearOutputs();
+                int providerCount = getProviderCount(session);
+                System.out.println(providerCount);
+
+                final byte[] responseBytes = postOffice(mail).encryptMail(String.valueOf(providerCount).getBytes());
+                postMail(responseBytes, routingHint);
+
+            } else if (MailType.TYPE_PROVIDER_DIGEST.equals(mailType)) {
+                session.clientTypeForCurrRequest = MailType.TYPE_PROVIDER_DIGEST.type;
+                //store the digest of the provider's input, identifying the outputs of earlier aggregations over it
+                reportProviderInputDigest(session, mail.getAuthenticatedSender(), new String(unencryptedMail, StandardCharsets.UTF_8));
+                session.clearOutputs();
+
+                final byte[] responseBytes = postOffice(mail).encryptMail(String.valueOf(session.providerInputDigests.size()).getBytes());
+                postMail(responseBytes, routingHint);
+
+            } else if (MailType.TYPE_PROVIDER_BASELINE.equals(mailType)) {
+                session.clientTypeForCurrRequest = MailType.TYPE_PROVIDER_BASELINE.type;
+                //load the rows retained for the provider, it only sends the rows added since
+                int baselineRowCount = loadProviderBaseline(session, mail.getAuthenticatedSender(), new String(unencryptedMail, StandardCharsets.UTF_8));
+                session.clearOutputs();
 
-                final byte[] responseBytes = postOffice(mail).encryptMail(String.valueOf(clientToEncryptedDataMap.size()).getBytes());
+                final byte[] responseBytes = postOffice(mail).encryptMail(String.valueOf(baselineRowCount).getBytes());
                 postMail(responseBytes, routingHint);
 
-            } else if (mailType.equals(MailType.TYPE_CONSUMER)) {
-                clientTypeForCurrRequest = MailType.TYPE_CONSUMER.type;
+            } else if (MailType.TYPE_CONSUMER.equals(mailType)) {
+                session.clientTypeForCurrRequest = MailType.TYPE_CONSUMER.type;
                 //send aggregation output to consumer
                 System.out.println("Consumer mail received.");
-                //create aggregate output
-                File aggregateOutput = createAggregateDataOutput();
-                final byte[] responseBytes = postOffice(mail).encryptMail(Files.readAllBytes(aggregateOutput.toPath()));
+                checkProviderUploadsComplete(session);
+                //create aggregate output, once for all the consumers served by the aggregation
+                if (session.aggregateOutputCache == null) {
+                    session.aggregateOutputCache = serializeOutput(session, session.aggregateOutputSchema,
+                            session.aggregateOutputDatumWriter, this::writeAggregateDataOutput);
+                    CachedResult resultToCache = getResultToCache(session);
+                    if (resultToCache != null) {
+                        resultToCache.aggregateOutput = session.aggregateOutputCache;
+                        publishResultIfComplete(session);
+                    }
+                }
+                final byte[] responseBytes = postOffice(mail).encryptMail(session.aggregateOutputCache);
                 postMail(responseBytes, routingHint);
 
-            } else if (mailType.equals(MailType.TYPE_REWARDS)) {
-                clientTypeForCurrRequest = MailType.TYPE_REWARDS.type;
+            } else if (MailType.TYPE_REWARDS.equals(mailType)) {
+                session.clientTypeForCurrRequest = MailType.TYPE_REWARDS.type;
                 //send rewards result to party aka provider
                 System.out.println("Rewards Mail received");
+                checkProviderUploadsComplete(session);
                 //create rewards output
-                File rewardsOutput = createRewardsDataOutput(mail.getAuthenticatedSender());
-                final byte[] responseBytes = postOffice(mail).encryptMail(Files.readAllBytes(rewardsOutput.toPath()));
+                final byte[] responseBytes = postOffice(mail).encryptMail(getRewardsDataOutput(session, mail.getAuthenticatedSender()));
+                retainProviderInput(session, mail.getAuthenticatedSender());
                 postMail(responseBytes, routingHint);
 
             } else {
-                clientTypeForCurrRequest = null;
-                System.out.println("Unauthenticated client request");
+                session.clientTypeForCurrRequest = null;
+                throw new IllegalArgumentException("Unauthenticated client request");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to process " + mailType + " mail", e);
+        } catch (UnsupportedDataTypeException e) {
+            throw new IllegalStateException("Unable to process " + mailType + " mail", e);
+        }
+    }
+
+    private byte[] getRewardsDataOutput(AggregationSession session, PublicKey providerKey) throws IOException, UnsupportedDataTypeException {
+        if (session.cachedResult != null) {
+            byte[] cachedRewards = session.cachedResult.rewardsOutputs.get(session.providerInputDigests.get(providerKey));
+            if (cachedRewards == null)
+                throw new IllegalStateException("No rewards cached for the provider's input");
+            return cachedRewards;
+        }
+        byte[] rewardsOutput = computeRewardsDataOutput(session, providerKey);
+        CachedResult resultToCache = getResultToCache(session);
+        if (resultToCache != null) {
+            resultToCache.rewardsOutputs.put(session.providerInputDigests.get(providerKey), rewardsOutput);
+            publishResultIfComplete(session);
+        }
+        return rewardsOutput;
+    }
+
+    private byte[] computeRewardsDataOutput(AggregationSession session, PublicKey providerKey) throws IOException, UnsupportedDataTypeException {
+        if (session.rewardsOutputCache == null) {
+            Map<PublicKey, GenericRecord> rewardsForAllProviders = createRewardsForAllProviders();
+            if (rewardsForAllProviders != null) {
+                session.rewardsOutputCache = new HashMap<>();
+                for (Map.Entry<PublicKey, GenericRecord> entry : rewardsForAllProviders.entrySet()) {
+                    session.rewardsOutputCache.put(entry.getKey(), serializeOutput(session, session.rewardsOutputSchema,
+                            session.rewardsOutputDatumWriter, dataFileWriter -> dataFileWriter.append(entry.getValue())));
+                }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+        if (session.rewardsOutputCache != null && session.rewardsOutputCache.containsKey(providerKey))
+            return session.rewardsOutputCache.get(providerKey);
+
+        return serializeOutput(session, session.rewardsOutputSchema, session.rewardsOutputDatumWriter,
+                dataFileWriter -> writeRewardsDataOutput(providerKey, dataFileWriter));
     }
 
-    private MailType getMailType(String unencryptedMail) {
+    /**
+     * Routes a mail using the {@link MailEnvelope} header set by 180Protocol clients. Mail without a header, sent by
+     * clients built before the header was introduced, falls back to scanning the body for the sub-schema names.
+     **/
+    private MailType getMailType(MailEnvelope mailEnvelope, byte[] unencryptedMailBytes) {
+        if (mailEnvelope != null)
+            return mailEnvelope.getMailType();
+
+        String unencryptedMail = new String(unencryptedMailBytes);
         if (unencryptedMail.contains("AggregateInput"))
             return MailType.TYPE_PROVIDER;
         else if (unencryptedMail.contains("AggregateOutput"))
@@ -182,6 +848,127 @@ public abstract class AggregationEnclave extends Enclave {
         return null;
     }
 
+    /**
+     * Outputs of an aggregation kept for repeat aggregations over the same inputs, the rewards by provider input digest.
+     */
+    private static class CachedResult {
+        byte[] aggregateOutput;
+        final HashMap<String, byte[]> rewardsOutputs = new HashMap<>();
+
+        /**
+         * Whether the result holds the aggregate output and the rewards for every one of the given input digests.
+         */
+        boolean isComplete(Collection<String> digests) {
+            return aggregateOutput != null && rewardsOutputs.keySet().containsAll(digests);
+        }
+    }
+
+    /**
+     * Input of a provider uploading incrementally, kept for its next aggregation: the Avro data files received, merged
+     * into a single file.
+     */
+    private static class RetainedInput {
+        final byte[] inputFile;
+        final int rowCount;
+
+        RetainedInput(byte[] inputFile, int rowCount) {
+            this.inputFile = inputFile;
+            this.rowCount = rowCount;
+        }
+    }
+
+    /**
+     * Input of a provider uploading incrementally in the current session, the files of its baseline first.
+     */
+    private static class ProviderBaseline {
+        final String retainedInputKey;
+        final List<byte[]> inputFiles = new ArrayList<>();
+        int baselineFileCount;
+        int rowCount;
+
+        ProviderBaseline(String retainedInputKey) {
+            this.retainedInputKey = retainedInputKey;
+        }
+
+        void addInputFile(byte[] inputFile, int fileRowCount) {
+            inputFiles.add(inputFile);
+            rowCount += fileRowCount;
+        }
+    }
+
+    /**
+     * State of a single aggregation served by the enclave, guarded by its own lock while a mail or host command of the
+     * session is processed.
+     */
+    private static class AggregationSession {
+        final Schema envelopeSchema;
+        final Schema aggregateInputSchema;
+        final Schema aggregateOutputSchema;
+        final Schema rewardsOutputSchema;
+        //reader for the 'aggregateInput' sub-schema, shared by every provider payload decoded in the session
+        final GenericDatumReader<GenericRecord> aggregateInputDatumReader;
+        //writers for the output sub-schemas and the in-memory buffer outputs are serialized into before being encrypted
+        final GenericDatumWriter<GenericRecord> aggregateOutputDatumWriter;
+        final GenericDatumWriter<GenericRecord> rewardsOutputDatumWriter;
+        final ByteArrayOutputStream outputBuffer = new ByteArrayOutputStream(8192);
+        //codec outputs are compressed with, set by the host
+        CodecFactory outputCodec = CodecFactory.nullCodec();
+        //fingerprint of the envelope schema, part of the key of retained provider inputs
+        final String envelopeSchemaFingerprint;
+        //schema and codec the outputs are written with, part of the key of cached results
+        String resultCacheScope;
+
+        //Enclave local store
+        final HashMap<PublicKey, byte[]> clientToEncryptedDataMap = new HashMap<>();
+        final HashMap<PublicKey, ArrayList<GenericRecord>> clientToRawDataMap = new HashMap<>();
+        //columnar store of all provider rows, filled instead of clientToRawDataMap when useColumnarDataStore is enabled
+        final ColumnarDataStore dataStore;
+        //serialized rewards for every provider, computed once per aggregation by createRewardsForAllProviders
+        HashMap<PublicKey, byte[]> rewardsOutputCache;
+        //serialized aggregate output, computed once for all consumers of an aggregation
+        byte[] aggregateOutputCache;
+        //index of the next chunk expected from every provider with a chunked upload in progress
+        final HashMap<PublicKey, Integer> providerChunkIndexes = new HashMap<>();
+        //digests of their input reported by providers and bound to their identity, the key of earlier aggregations' outputs
+        final HashMap<PublicKey, String> providerInputDigests = new HashMap<>();
+        //digests of the encoded records of their input reported by providers, checked against the records they send
+        final HashMap<PublicKey, String> reportedRecordDigests = new HashMap<>();
+        //digests of the records received so far from providers that reported one, until their upload is complete
+        final HashMap<PublicKey, MessageDigest> receivedRecordDigests = new HashMap<>();
+        //providers whose records were found to match the digest they reported
+        final Set<PublicKey> verifiedInputs = new HashSet<>();
+        //outputs of an earlier aggregation over the same inputs, loaded instead of receiving the provider data
+        CachedResult cachedResult;
+        //outputs computed in the session so far, published to the result cache once complete
+        CachedResult resultToCache;
+        //rows retained from earlier aggregations that providers build their upload on, with the rows uploaded since
+        final HashMap<PublicKey, ProviderBaseline> providerBaselines = new HashMap<>();
+        String clientTypeForCurrRequest;
+
+        AggregationSession(Schema envelopeSchema) {
+            this.envelopeSchema = envelopeSchema;
+            aggregateInputSchema = envelopeSchema.getField("aggregateInput").schema();
+            aggregateOutputSchema = envelopeSchema.getField("aggregateOutput").schema();
+            rewardsOutputSchema = envelopeSchema.getField("rewardsOutput").schema();
+            aggregateInputDatumReader = new GenericDatumReader<>(aggregateInputSchema);
+            aggregateOutputDatumWriter = new GenericDatumWriter<>(aggregateOutputSchema);
+            rewardsOutputDatumWriter = new GenericDatumWriter<>(rewardsOutputSchema);
+            envelopeSchemaFingerprint = Long.toHexString(SchemaNormalization.parsingFingerprint64(envelopeSchema));
+            resultCacheScope = envelopeSchemaFingerprint + ":" + DataFileConstants.NULL_CODEC;
+            dataStore = new ColumnarDataStore(aggregateInputSchema);
+        }
+
+        /**
+         * Drops the outputs computed so far, which no longer reflect the provider data of the session.
+         */
+        void clearOutputs() {
+            rewardsOutputCache = null;
+            aggregateOutputCache = null;
+            cachedResult = null;
+            resultToCache = null;
+        }
+    }
+
     public class UnsupportedDataTypeException extends Exception {
         public UnsupportedDataTypeException(String errorMessage) {
             super(errorMessage);
@@ -0,0 +1,351 @@
+package com.protocol180.aggregator.enclave;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AggregationEngine computes {@link AggregationQuery} declarations over a {@link ColumnarDataStore}. All queries passed
+ * to {@link #execute(AggregationQuery...)} are fused into a single scan over the rows: every row is read once and fed
+ * to the accumulators of every query. Group keys are encoded from dictionary codes (or dense ids assigned during the
+ * scan for non string fields) and accumulators are primitive arrays indexed by group, so no boxed key or value is
+ * created per row.
+ */
+public class AggregationEngine {
+
+    private final ColumnarDataStore dataStore;
+
+    public AggregationEngine(ColumnarDataStore dataStore) {
+        this.dataStore = dataStore;
+    }
+
+    /**
+     * Computes all queries in one scan and returns their results in the order of the queries.
+     */
+    public List<AggregationResult> execute(AggregationQuery... queries) {
+        return execute(Arrays.asList(queries));
+    }
+
+    public List<AggregationResult> execute(List<AggregationQuery> queries) {
+        QueryAccumulator[] accumulators = new QueryAccumulator[queries.size()];
+        for (int i = 0; i < accumulators.length; i++) {
+            accumulators[i] = new QueryAccumulator(queries.get(i));
+        }
+
+        int rowCount = dataStore.getRowCount();
+        for (int row = 0; row < rowCount; row++) {
+            for (QueryAccumulator accumulator : accumulators) {
+                accumulator.accumulate(row);
+            }
+        }
+
+        List<AggregationResult> results = new ArrayList<>(accumulators.length);
+        for (QueryAccumulator accumulator : accumulators) {
+            results.add(accumulator.toResult());
+        }
+        return results;
+    }
+
+    private KeyEncoder createEncoder(String fieldName) {
+        ColumnarDataStore.Column column = dataStore.getColumn(fieldName);
+        if (column instanceof ColumnarDataStore.StringColumn)
+            return new StringKeyEncoder((ColumnarDataStore.StringColumn) column);
+        if (column instanceof ColumnarDataStore.BooleanColumn)
+            return new BooleanKeyEncoder((ColumnarDataStore.BooleanColumn) column);
+        return new DenseKeyEncoder(column);
+    }
+
+    /**
+     * Maps the value of a field to a non negative int code, 0 being reserved for null, and back.
+     */
+    private interface KeyEncoder {
+        int encode(int row);
+
+        Object decode(int code);
+    }
+
+    private static final class StringKeyEncoder implements KeyEncoder {
+        private final ColumnarDataStore.StringColumn column;
+
+        StringKeyEncoder(ColumnarDataStore.StringColumn column) {
+            this.column = column;
+        }
+
+        @Override
+        public int encode(int row) {
+            return column.getCode(row) + 1;
+        }
+
+        @Override
+        public Object decode(int code) {
+            return column.decode(code - 1);
+        }
+    }
+
+    private static final class BooleanKeyEncoder implements KeyEncoder {
+        private final ColumnarDataStore.BooleanColumn column;
+
+        BooleanKeyEncoder(ColumnarDataStore.BooleanColumn column) {
+            this.column = column;
+        }
+
+        @Override
+        public int encode(int row) {
+            if (column.isNull(row))
+                return 0;
+            return column.getBoolean(row) ? 2 : 1;
+        }
+
+        @Override
+        public Object decode(int code) {
+            return code == 0 ? null : code == 2;
+        }
+    }
+
+    /**
+     * Assigns dense codes to the distinct values of numeric and object fields in the order they are met.
+     */
+    private static final class DenseKeyEncoder implements KeyEncoder {
+        private final ColumnarDataStore.Column column;
+        private final LongIntHashMap primitiveCodes = new LongIntHashMap();
+        private final Map<Object, Integer> objectCodes = new HashMap<>();
+        private final List<Object> values = new ArrayList<>();
+
+        DenseKeyEncoder(ColumnarDataStore.Column column) {
+            this.column = column;
+        }
+
+        @Override
+        public int encode(int row) {
+            if (column.isNull(row))
+                return 0;
+            int code;
+            if (column instanceof ColumnarDataStore.IntColumn) {
+                code = primitiveCodes.getOrAssignNext(((ColumnarDataStore.IntColumn) column).getInt(row));
+            } else if (column instanceof ColumnarDataStore.LongColumn) {
+                code = primitiveCodes.getOrAssignNext(((ColumnarDataStore.LongColumn) column).getLong(row));
+            } else if (column instanceof ColumnarDataStore.NumericColumn) {
+                code = primitiveCodes.getOrAssignNext(Double.doubleToLongBits(((ColumnarDataStore.NumericColumn) column).getDouble(row)));
+            } else {
+                Object value = column.getValue(row);
+                Integer objectCode = objectCodes.get(value);
+                if (objectCode == null) {
+                    objectCode = objectCodes.size();
+                    objectCodes.put(value, objectCode);
+                }
+                code = objectCode;
+            }
+            if (code == values.size())
+                values.add(column.getValue(row));
+            return code + 1;
+        }
+
+        @Override
+        public Object decode(int code) {
+            return code == 0 ? null : values.get(code - 1);
+        }
+    }
+
+    /**
+     * Group and measure state of a single query during the scan.
+     */
+    private final class QueryAccumulator {
+        private final AggregationQuery query;
+        private final AggregationQuery.Measure[] measures;
+        private final KeyEncoder[] keyEncoders;
+        private final int levels;
+        private final LongIntHashMap[] levelIds;
+        private final int[] rowCodes;
+
+        private int groupCount;
+        private int[] groupCodes;
+        private long[] counts;
+
+        private final ColumnarDataStore.NumericColumn[] numericFields;
+        private final ColumnarDataStore.BooleanColumn[] booleanFields;
+        private final boolean[][] trueStringCodes;
+        private final ColumnarDataStore.StringColumn[] stringFields;
+        private final KeyEncoder[] distinctEncoders;
+        private final LongIntHashMap[] distinctValues;
+        private final double[][] sums;
+        private final long[][] valueCounts;
+
+        QueryAccumulator(AggregationQuery query) {
+            this.query = query;
+            List<String> groupByFields = query.getGroupByFields();
+            keyEncoders = new KeyEncoder[groupByFields.size()];
+            for (int i = 0; i < keyEncoders.length; i++) {
+                keyEncoders[i] = createEncoder(groupByFields.get(i));
+            }
+            levels = keyEncoders.length + (query.isPerProvider() ? 1 : 0);
+            levelIds = new LongIntHashMap[levels];
+            for (int i = 0; i < levels; i++) {
+                levelIds[i] = new LongIntHashMap();
+            }
+            rowCodes = new int[levels];
+            groupCodes = new int[Math.max(1, levels) * 16];
+            counts = new long[16];
+
+            measures = query.getMeasures().toArray(new AggregationQuery.Measure[0]);
+            numericFields = new ColumnarDataStore.NumericColumn[measures.length];
+            booleanFields = new ColumnarDataStore.BooleanColumn[measures.length];
+            stringFields = new ColumnarDataStore.StringColumn[measures.length];
+            trueStringCodes = new boolean[measures.length][];
+            distinctEncoders = new KeyEncoder[measures.length];
+            distinctValues = new LongIntHashMap[measures.length];
+            sums = new double[measures.length][];
+            valueCounts = new long[measures.length][];
+            for (int m = 0; m < measures.length; m++) {
+                AggregationQuery.Measure measure = measures[m];
+                switch (measure.type) {
+                    case SUM:
+                    case AVG:
+                        numericFields[m] = dataStore.getNumericColumn(measure.field);
+                        sums[m] = new double[16];
+                        valueCounts[m] = new long[16];
+                        break;
+                    case DISTINCT_COUNT:
+                        distinctEncoders[m] = createEncoder(measure.field);
+                        distinctValues[m] = new LongIntHashMap();
+                        valueCounts[m] = new long[16];
+                        break;
+                    case PERCENTAGE:
+                        ColumnarDataStore.Column column = dataStore.getColumn(measure.field);
+                        if (column instanceof ColumnarDataStore.BooleanColumn) {
+                            booleanFields[m] = (ColumnarDataStore.BooleanColumn) column;
+                        } else if (column instanceof ColumnarDataStore.StringColumn) {
+                            //the store is complete when a scan starts, so "true" is looked up once per dictionary entry
+                            stringFields[m] = (ColumnarDataStore.StringColumn) column;
+                            trueStringCodes[m] = new boolean[stringFields[m].getDictionarySize()];
+                            for (int code = 0; code < trueStringCodes[m].length; code++) {
+                                trueStringCodes[m][code] = "true".equals(stringFields[m].decode(code));
+                            }
+                        } else {
+                            throw new IllegalArgumentException("Field " + measure.field + " of type " + column.type + " can't be used for a percentage");
+                        }
+                        valueCounts[m] = new long[16];
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        void accumulate(int row) {
+            int group = findGroup(row);
+            counts[group]++;
+            for (int m = 0; m < measures.length; m++) {
+                switch (measures[m].type) {
+                    case SUM:
+                    case AVG:
+                        if (!numericFields[m].isNull(row)) {
+                            sums[m][group] += numericFields[m].getDouble(row);
+                            valueCounts[m][group]++;
+                        }
+                        break;
+                    case DISTINCT_COUNT:
+                        int valueCode = distinctEncoders[m].encode(row);
+                        if (valueCode != 0) {
+                            LongIntHashMap seen = distinctValues[m];
+                            int size = seen.size();
+                            if (seen.getOrAssignNext(((long) group << 32) | valueCode) == size)
+                                valueCounts[m][group]++;
+                        }
+                        break;
+                    case PERCENTAGE:
+                        if (booleanFields[m] != null) {
+                            if (!booleanFields[m].isNull(row) && booleanFields[m].getBoolean(row))
+                                valueCounts[m][group]++;
+                        } else {
+                            int code = stringFields[m].getCode(row);
+                            if (code >= 0 && trueStringCodes[m][code])
+                                valueCounts[m][group]++;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Resolves the group of a row by chaining the codes of its key fields: the id assigned at each level is the
+         * parent of the next level's key, and the id of the last level is the group.
+         */
+        private int findGroup(int row) {
+            if (levels == 0) {
+                groupCount = 1;
+                return 0;
+            }
+            int level = 0;
+            if (query.isPerProvider())
+                rowCodes[level++] = dataStore.getRowProviderId(row);
+            for (KeyEncoder keyEncoder : keyEncoders) {
+                rowCodes[level++] = keyEncoder.encode(row);
+            }
+
+            int parent = 0;
+            for (level = 0; level < levels; level++) {
+                parent = levelIds[level].getOrAssignNext(((long) parent << 32) | rowCodes[level]);
+            }
+            if (parent == groupCount)
+                addGroup();
+            return parent;
+        }
+
+        private void addGroup() {
+            if ((groupCount + 1) * levels > groupCodes.length)
+                groupCodes = Arrays.copyOf(groupCodes, groupCodes.length * 2);
+            System.arraycopy(rowCodes, 0, groupCodes, groupCount * levels, levels);
+            groupCount++;
+            if (groupCount > counts.length) {
+                int capacity = counts.length * 2;
+                counts = Arrays.copyOf(counts, capacity);
+                for (int m = 0; m < measures.length; m++) {
+                    if (sums[m] != null)
+                        sums[m] = Arrays.copyOf(sums[m], capacity);
+                    if (valueCounts[m] != null)
+                        valueCounts[m] = Arrays.copyOf(valueCounts[m], capacity);
+                }
+            }
+        }
+
+        AggregationResult toResult() {
+            int keyOffset = query.isPerProvider() ? 1 : 0;
+            Object[][] keys = new Object[groupCount][keyEncoders.length];
+            int[] providerIds = new int[groupCount];
+            for (int group = 0; group < groupCount; group++) {
+                providerIds[group] = query.isPerProvider() ? groupCodes[group * levels] : -1;
+                for (int k = 0; k < keyEncoders.length; k++) {
+                    keys[group][k] = keyEncoders[k].decode(groupCodes[group * levels + keyOffset + k]);
+                }
+            }
+
+            double[][] values = new double[measures.length][groupCount];
+            for (int m = 0; m < measures.length; m++) {
+                for (int group = 0; group < groupCount; group++) {
+                    switch (measures[m].type) {
+                        case COUNT:
+                            values[m][group] = counts[group];
+                            break;
+                        case SUM:
+                            values[m][group] = sums[m][group];
+                            break;
+                        case AVG:
+                            values[m][group] = valueCounts[m][group] == 0 ? Double.NaN : sums[m][group] / valueCounts[m][group];
+                            break;
+                        case DISTINCT_COUNT:
+                            values[m][group] = valueCounts[m][group];
+                            break;
+                        case PERCENTAGE:
+                            values[m][group] = valueCounts[m][group] * 100d / counts[group];
+                            break;
+                    }
+                }
+            }
+            return new AggregationResult(query, keys, providerIds, Arrays.copyOf(counts, groupCount), values);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.protocol180.aggregator.enclave;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * AggregationQuery declares a group by aggregation over the 'aggregateInput' rows held in a {@link ColumnarDataStore}.
+ * A query names the fields to group by and the measures to compute for every group. Any number of queries are computed
+ * together by the {@link AggregationEngine} in a single scan over the data, replacing one stream pipeline (and one full
+ * pass) per aggregation:
+ * <pre>
+ *     AggregationQuery byModel = AggregationQuery.groupBy("model")
+ *             .avg("averagePrice", "average_price")
+ *             .sum("unitsSold", "units");
+ *     AggregationQuery modelsPerProvider = AggregationQuery.groupBy("model").perProvider();
+ *     List&lt;AggregationResult&gt; results = aggregate(byModel, modelsPerProvider);
+ * </pre>
+ * Grouping by no fields computes the measures over all rows.
+ */
+public final class AggregationQuery {
+
+    /**
+     * Measures supported by the aggregation engine. Every group also carries its row count.
+     * COUNT - number of rows in the group
+     * SUM - sum of a numeric field, ignoring nulls
+     * AVG - average of a numeric field, ignoring nulls
+     * DISTINCT_COUNT - number of distinct non null values of a field
+     * PERCENTAGE - percentage of the rows in the group for which a boolean field (or a string field holding "true") is true
+     */
+    public enum MeasureType {
+        COUNT,
+        SUM,
+        AVG,
+        DISTINCT_COUNT,
+        PERCENTAGE
+    }
+
+    /**
+     * A named measure of the query, computed over a field of the aggregate input (no field for COUNT).
+     */
+    public static final class Measure {
+        public final String name;
+        public final MeasureType type;
+        public final String field;
+
+        Measure(String name, MeasureType type, String field) {
+            this.name = name;
+            this.type = type;
+            this.field = field;
+        }
+    }
+
+    private final List<String> groupByFields;
+    private final List<Measure> measures = new ArrayList<>();
+    private boolean perProvider;
+
+    private AggregationQuery(List<String> groupByFields) {
+        this.groupByFields = groupByFields;
+    }
+
+    public static AggregationQuery groupBy(String... groupByFields) {
+        return new AggregationQuery(Collections.unmodifiableList(Arrays.asList(groupByFields)));
+    }
+
+    public AggregationQuery count(String name) {
+        return addMeasure(name, MeasureType.COUNT, null);
+    }
+
+    public AggregationQuery sum(String name, String field) {
+        return addMeasure(name, MeasureType.SUM, field);
+    }
+
+    public AggregationQuery avg(String name, String field) {
+        return addMeasure(name, MeasureType.AVG, field);
+    }
+
+    public AggregationQuery distinctCount(String name, String field) {
+        return addMeasure(name, MeasureType.DISTINCT_COUNT, field);
+    }
+
+    public AggregationQuery percentage(String name, String booleanField) {
+        return addMeasure(name, MeasureType.PERCENTAGE, booleanField);
+    }
+
+    /**
+     * Keeps the groups of every provider apart, as if the provider were an additional group by field. Used to compute
+     * per provider numerators, for example for rewards.
+     */
+    public AggregationQuery perProvider() {
+        perProvider = true;
+        return this;
+    }
+
+    public List<String> getGroupByFields() {
+        return groupByFields;
+    }
+
+    public List<Measure> getMeasures() {
+        return Collections.unmodifiableList(measures);
+    }
+
+    public boolean isPerProvider() {
+        return perProvider;
+    }
+
+    private AggregationQuery addMeasure(String name, MeasureType type, String field) {
+        for (Measure measure : measures) {
+            if (measure.name.equals(name))
+                throw new IllegalArgumentException("Measure " + name + " is declared more than once");
+        }
+        measures.add(new Measure(name, type, field));
+        return this;
+    }
+}
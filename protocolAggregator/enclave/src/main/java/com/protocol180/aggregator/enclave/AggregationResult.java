@@ -0,0 +1,94 @@
+package com.protocol180.aggregator.enclave;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups and measure values computed by the {@link AggregationEngine} for one {@link AggregationQuery}. Groups are
+ * numbered from 0 in the order they were first met during the scan.
+ */
+public class AggregationResult {
+
+    private final AggregationQuery query;
+    private final Object[][] keys;
+    private final int[] providerIds;
+    private final long[] counts;
+    private final double[][] values;
+
+    AggregationResult(AggregationQuery query, Object[][] keys, int[] providerIds, long[] counts, double[][] values) {
+        this.query = query;
+        this.keys = keys;
+        this.providerIds = providerIds;
+        this.counts = counts;
+        this.values = values;
+    }
+
+    public AggregationQuery getQuery() {
+        return query;
+    }
+
+    public int getGroupCount() {
+        return keys.length;
+    }
+
+    /**
+     * Returns the number of groups of a provider, for queries computed per provider.
+     */
+    public int getGroupCount(int providerId) {
+        int groupCount = 0;
+        for (int providerIdOfGroup : providerIds) {
+            if (providerIdOfGroup == providerId)
+                groupCount++;
+        }
+        return groupCount;
+    }
+
+    /**
+     * Returns the value of the group by field at keyIndex for the group, as a String for string and enum fields.
+     */
+    public Object getKey(int group, int keyIndex) {
+        return keys[group][keyIndex];
+    }
+
+    /**
+     * Returns the id of the provider the group belongs to in the ColumnarDataStore, or -1 if the query is not computed
+     * per provider.
+     */
+    public int getProviderId(int group) {
+        return providerIds[group];
+    }
+
+    public long getCount(int group) {
+        return counts[group];
+    }
+
+    public double getValue(int group, String measureName) {
+        return values[measureIndex(measureName)][group];
+    }
+
+    /**
+     * Returns the measure value of every group keyed by the group by value, for queries grouping by a single field.
+     */
+    public Map<String, Double> toMap(String measureName) {
+        if (keys.length > 0 && keys[0].length != 1)
+            throw new IllegalStateException("Only results grouped by a single field can be converted to a map");
+        if (query.isPerProvider())
+            throw new IllegalStateException("Results computed per provider can't be converted to a map");
+        double[] measureValues = values[measureIndex(measureName)];
+        Map<String, Double> map = new HashMap<>();
+        for (int group = 0; group < keys.length; group++) {
+            map.put(String.valueOf(keys[group][0]), measureValues[group]);
+        }
+        return map;
+    }
+
+    private int measureIndex(String measureName) {
+        List<AggregationQuery.Measure> measures = query.getMeasures();
+        for (int m = 0; m < measures.size(); m++) {
+            if (measures.get(m).name.equals(measureName))
+                return m;
+        }
+        throw new IllegalArgumentException("Measure " + measureName + " is not part of the query");
+    }
+}
@@ -0,0 +1,566 @@
+package com.protocol180.aggregator.enclave;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+
+import java.security.PublicKey;
+import java.util.*;
+
+/**
+ * ColumnarDataStore holds the rows received from all providers of an aggregation in a column oriented, primitive typed
+ * layout built from the 'aggregateInput' sub-schema. Numeric and boolean fields are kept in primitive arrays and string
+ * (and enum) fields are dictionary encoded into int columns, so a row costs a few bytes per field instead of a boxed
+ * GenericData.Record. Every row also records the provider it was received from in a provider id column.
+ * Nullable unions of the form ["null", type] are stored as the non null type with a null marker per row. Fields of any
+ * other type are kept as plain objects.
+ * Aggregation code in AggregationEnclave subclasses can scan the store row by row using the typed column accessors:
+ * <pre>
+ *     ColumnarDataStore.StringColumn model = dataStore.getStringColumn("model");
+ *     ColumnarDataStore.NumericColumn units = dataStore.getNumericColumn("units");
+ *     for (int row = 0; row &lt; dataStore.getRowCount(); row++) { ... model.getCode(row) ... units.getDouble(row) ... }
+ * </pre>
+ */
+public class ColumnarDataStore {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Schema schema;
+    private final Column[] columns;
+    private final Map<String, Column> columnsByName = new HashMap<>();
+
+    private final List<PublicKey> providers = new ArrayList<>();
+    private final Map<PublicKey, Integer> providerIds = new HashMap<>();
+    private final List<Integer> providerRowCounts = new ArrayList<>();
+    private int[] providerIdColumn = new int[INITIAL_CAPACITY];
+
+    private int rowCount;
+    private int capacity = INITIAL_CAPACITY;
+
+    public ColumnarDataStore(Schema aggregateInputSchema) {
+        this.schema = aggregateInputSchema;
+        List<Schema.Field> fields = aggregateInputSchema.getFields();
+        columns = new Column[fields.size()];
+        for (Schema.Field field : fields) {
+            Column column = createColumn(field);
+            columns[field.pos()] = column;
+            columnsByName.put(field.name(), column);
+        }
+    }
+
+    public Schema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Registers a provider and returns the id stored in the provider id column for its rows. Registering the same
+     * provider again returns its existing id.
+     */
+    public int addProvider(PublicKey providerKey) {
+        Integer providerId = providerIds.get(providerKey);
+        if (providerId == null) {
+            providerId = providers.size();
+            providers.add(providerKey);
+            providerIds.put(providerKey, providerId);
+            providerRowCounts.add(0);
+        }
+        return providerId;
+    }
+
+    /**
+     * Drops the rows received from a provider so far, for a provider sending its data over again. The rows of the
+     * other providers move up, keeping their order, and the provider keeps its id. Unknown providers are ignored.
+     */
+    public void resetProvider(PublicKey providerKey) {
+        Integer providerId = providerIds.get(providerKey);
+        if (providerId == null || providerRowCounts.get(providerId) == 0)
+            return;
+        int keptRowCount = 0;
+        for (int row = 0; row < rowCount; row++) {
+            if (providerIdColumn[row] == providerId)
+                continue;
+            if (keptRowCount != row) {
+                providerIdColumn[keptRowCount] = providerIdColumn[row];
+                for (Column column : columns) {
+                    column.moveRow(row, keptRowCount);
+                }
+            }
+            keptRowCount++;
+        }
+        for (Column column : columns) {
+            column.clearRows(keptRowCount, rowCount);
+        }
+        rowCount = keptRowCount;
+        providerRowCounts.set(providerId, 0);
+    }
+
+    /**
+     * Returns the id of a registered provider, or -1 if no data has been received from it.
+     */
+    public int getProviderId(PublicKey providerKey) {
+        Integer providerId = providerIds.get(providerKey);
+        return providerId == null ? -1 : providerId;
+    }
+
+    public PublicKey getProvider(int providerId) {
+        return providers.get(providerId);
+    }
+
+    public int getProviderCount() {
+        return providers.size();
+    }
+
+    public int getProviderRowCount(int providerId) {
+        return providerRowCounts.get(providerId);
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Returns the id of the provider the row was received from.
+     */
+    public int getRowProviderId(int row) {
+        return providerIdColumn[row];
+    }
+
+    /**
+     * Appends a record following the 'aggregateInput' sub-schema. All values are copied into the columns, so the
+     * record instance can be reused by the caller once this returns.
+     */
+    public void appendRecord(int providerId, GenericRecord record) {
+        if (rowCount == capacity)
+            grow();
+        for (Column column : columns) {
+            column.set(rowCount, record.get(column.position));
+        }
+        providerIdColumn[rowCount] = providerId;
+        providerRowCounts.set(providerId, providerRowCounts.get(providerId) + 1);
+        rowCount++;
+    }
+
+    public Column getColumn(String fieldName) {
+        Column column = columnsByName.get(fieldName);
+        if (column == null)
+            throw new IllegalArgumentException("Field " + fieldName + " is not part of the aggregate input schema");
+        return column;
+    }
+
+    public StringColumn getStringColumn(String fieldName) {
+        return getTypedColumn(fieldName, StringColumn.class);
+    }
+
+    public NumericColumn getNumericColumn(String fieldName) {
+        return getTypedColumn(fieldName, NumericColumn.class);
+    }
+
+    public BooleanColumn getBooleanColumn(String fieldName) {
+        return getTypedColumn(fieldName, BooleanColumn.class);
+    }
+
+    private <T extends Column> T getTypedColumn(String fieldName, Class<T> columnClass) {
+        Column column = getColumn(fieldName);
+        if (!columnClass.isInstance(column))
+            throw new IllegalArgumentException("Field " + fieldName + " of type " + column.type + " is not a " + columnClass.getSimpleName());
+        return columnClass.cast(column);
+    }
+
+    private void grow() {
+        capacity = capacity * 2;
+        providerIdColumn = Arrays.copyOf(providerIdColumn, capacity);
+        for (Column column : columns) {
+            column.grow(capacity);
+        }
+    }
+
+    private static Column createColumn(Schema.Field field) {
+        Schema fieldSchema = field.schema();
+        boolean nullable = false;
+        if (fieldSchema.getType() == Schema.Type.UNION) {
+            List<Schema> nonNullTypes = new ArrayList<>();
+            for (Schema unionType : fieldSchema.getTypes()) {
+                if (unionType.getType() == Schema.Type.NULL)
+                    nullable = true;
+                else
+                    nonNullTypes.add(unionType);
+            }
+            if (nonNullTypes.size() != 1)
+                return new ObjectColumn(field.name(), field.pos(), fieldSchema, nullable);
+            fieldSchema = nonNullTypes.get(0);
+        }
+
+        switch (fieldSchema.getType()) {
+            case INT:
+                return new IntColumn(field.name(), field.pos(), nullable);
+            case LONG:
+                return new LongColumn(field.name(), field.pos(), nullable);
+            case FLOAT:
+                return new FloatColumn(field.name(), field.pos(), nullable);
+            case DOUBLE:
+                return new DoubleColumn(field.name(), field.pos(), nullable);
+            case BOOLEAN:
+                return new BooleanColumn(field.name(), field.pos(), nullable);
+            case STRING:
+            case ENUM:
+                return new StringColumn(field.name(), field.pos(), fieldSchema, nullable);
+            default:
+                return new ObjectColumn(field.name(), field.pos(), fieldSchema, nullable);
+        }
+    }
+
+    /**
+     * A single field of the 'aggregateInput' sub-schema stored for every row.
+     */
+    public abstract static class Column {
+        public final String name;
+        public final Schema.Type type;
+        final int position;
+        private final boolean nullable;
+        private BitSet nulls;
+
+        Column(String name, int position, Schema.Type type, boolean nullable) {
+            this.name = name;
+            this.position = position;
+            this.type = type;
+            this.nullable = nullable;
+            this.nulls = nullable ? new BitSet(INITIAL_CAPACITY) : null;
+        }
+
+        public boolean isNull(int row) {
+            return nullable && nulls.get(row);
+        }
+
+        /**
+         * Returns the value of the row as an object, boxing primitives. Meant for output building, scans should use the
+         * typed accessors of the column.
+         */
+        public abstract Object getValue(int row);
+
+        final void set(int row, Object value) {
+            if (value == null) {
+                if (!nullable)
+                    throw new IllegalArgumentException("Null value received for non nullable field " + name);
+                nulls.set(row);
+            } else {
+                setValue(row, value);
+            }
+        }
+
+        abstract void setValue(int row, Object value);
+
+        final void moveRow(int fromRow, int toRow) {
+            if (nullable)
+                nulls.set(toRow, nulls.get(fromRow));
+            moveValue(fromRow, toRow);
+        }
+
+        abstract void moveValue(int fromRow, int toRow);
+
+        /**
+         * Clears the rows from fromRow (inclusive) to toRow (exclusive) once they are no longer in use, as rows set
+         * later only set the null marker of null values.
+         */
+        void clearRows(int fromRow, int toRow) {
+            if (nullable)
+                nulls.clear(fromRow, toRow);
+        }
+
+        abstract void grow(int capacity);
+    }
+
+    /**
+     * Columns of numeric fields, read as a double regardless of the stored primitive type.
+     */
+    public abstract static class NumericColumn extends Column {
+        NumericColumn(String name, int position, Schema.Type type, boolean nullable) {
+            super(name, position, type, nullable);
+        }
+
+        public abstract double getDouble(int row);
+    }
+
+    public static class IntColumn extends NumericColumn {
+        private int[] values = new int[INITIAL_CAPACITY];
+
+        IntColumn(String name, int position, boolean nullable) {
+            super(name, position, Schema.Type.INT, nullable);
+        }
+
+        public int getInt(int row) {
+            return values[row];
+        }
+
+        @Override
+        public double getDouble(int row) {
+            return values[row];
+        }
+
+        @Override
+        public Object getValue(int row) {
+            return isNull(row) ? null : values[row];
+        }
+
+        @Override
+        void setValue(int row, Object value) {
+            values[row] = ((Number) value).intValue();
+        }
+
+        @Override
+        void moveValue(int fromRow, int toRow) {
+            values[toRow] = values[fromRow];
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+    }
+
+    public static class LongColumn extends NumericColumn {
+        private long[] values = new long[INITIAL_CAPACITY];
+
+        LongColumn(String name, int position, boolean nullable) {
+            super(name, position, Schema.Type.LONG, nullable);
+        }
+
+        public long getLong(int row) {
+            return values[row];
+        }
+
+        @Override
+        public double getDouble(int row) {
+            return values[row];
+        }
+
+        @Override
+        public Object getValue(int row) {
+            return isNull(row) ? null : values[row];
+        }
+
+        @Override
+        void setValue(int row, Object value) {
+            values[row] = ((Number) value).longValue();
+        }
+
+        @Override
+        void moveValue(int fromRow, int toRow) {
+            values[toRow] = values[fromRow];
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+    }
+
+    public static class FloatColumn extends NumericColumn {
+        private float[] values = new float[INITIAL_CAPACITY];
+
+        FloatColumn(String name, int position, boolean nullable) {
+            super(name, position, Schema.Type.FLOAT, nullable);
+        }
+
+        public float getFloat(int row) {
+            return values[row];
+        }
+
+        @Override
+        public double getDouble(int row) {
+            return values[row];
+        }
+
+        @Override
+        public Object getValue(int row) {
+            return isNull(row) ? null : values[row];
+        }
+
+        @Override
+        void setValue(int row, Object value) {
+            values[row] = ((Number) value).floatValue();
+        }
+
+        @Override
+        void moveValue(int fromRow, int toRow) {
+            values[toRow] = values[fromRow];
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+    }
+
+    public static class DoubleColumn extends NumericColumn {
+        private double[] values = new double[INITIAL_CAPACITY];
+
+        DoubleColumn(String name, int position, boolean nullable) {
+            super(name, position, Schema.Type.DOUBLE, nullable);
+        }
+
+        @Override
+        public double getDouble(int row) {
+            return values[row];
+        }
+
+        @Override
+        public Object getValue(int row) {
+            return isNull(row) ? null : values[row];
+        }
+
+        @Override
+        void setValue(int row, Object value) {
+            values[row] = ((Number) value).doubleValue();
+        }
+
+        @Override
+        void moveValue(int fromRow, int toRow) {
+            values[toRow] = values[fromRow];
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+    }
+
+    public static class BooleanColumn extends Column {
+        private BitSet values = new BitSet(INITIAL_CAPACITY);
+
+        BooleanColumn(String name, int position, boolean nullable) {
+            super(name, position, Schema.Type.BOOLEAN, nullable);
+        }
+
+        public boolean getBoolean(int row) {
+            return values.get(row);
+        }
+
+        @Override
+        public Object getValue(int row) {
+            return isNull(row) ? null : values.get(row);
+        }
+
+        @Override
+        void setValue(int row, Object value) {
+            values.set(row, (Boolean) value);
+        }
+
+        @Override
+        void moveValue(int fromRow, int toRow) {
+            values.set(toRow, values.get(fromRow));
+        }
+
+        @Override
+        void grow(int capacity) {
+            //BitSet grows on demand
+        }
+    }
+
+    /**
+     * Dictionary encoded column for string and enum fields. Every distinct value is stored once and rows hold the int
+     * code of their value, which can also be used directly as a group by key. Values of enum fields are returned by
+     * {@link #getValue(int)} as enum symbols, like the decoder reads them.
+     */
+    public static class StringColumn extends Column {
+        private final Schema valueSchema;
+        private int[] codes = new int[INITIAL_CAPACITY];
+        private final List<Utf8> dictionary = new ArrayList<>();
+        private final Map<Utf8, Integer> dictionaryCodes = new HashMap<>();
+
+        StringColumn(String name, int position, Schema valueSchema, boolean nullable) {
+            super(name, position, valueSchema.getType(), nullable);
+            this.valueSchema = valueSchema;
+        }
+
+        /**
+         * Returns the dictionary code of the row's value, or -1 for a null value.
+         */
+        public int getCode(int row) {
+            return isNull(row) ? -1 : codes[row];
+        }
+
+        public String getString(int row) {
+            return isNull(row) ? null : dictionary.get(codes[row]).toString();
+        }
+
+        public String decode(int code) {
+            return code < 0 ? null : dictionary.get(code).toString();
+        }
+
+        public int getDictionarySize() {
+            return dictionary.size();
+        }
+
+        @Override
+        public Object getValue(int row) {
+            if (type == Schema.Type.ENUM && !isNull(row))
+                return new GenericData.EnumSymbol(valueSchema, dictionary.get(codes[row]).toString());
+            return getString(row);
+        }
+
+        @Override
+        void setValue(int row, Object value) {
+            //decoders reuse Utf8 instances between rows, so only a copy of the value may go into the dictionary
+            Utf8 utf8 = value instanceof Utf8 ? (Utf8) value : new Utf8(value.toString());
+            Integer code = dictionaryCodes.get(utf8);
+            if (code == null) {
+                Utf8 dictionaryValue = new Utf8(utf8);
+                code = dictionary.size();
+                dictionary.add(dictionaryValue);
+                dictionaryCodes.put(dictionaryValue, code);
+            }
+            codes[row] = code;
+        }
+
+        @Override
+        void moveValue(int fromRow, int toRow) {
+            codes[toRow] = codes[fromRow];
+        }
+
+        @Override
+        void grow(int capacity) {
+            codes = Arrays.copyOf(codes, capacity);
+        }
+    }
+
+    /**
+     * Fallback column for field types without a primitive representation, such as records, arrays or bytes. Values are
+     * deep copied as decoders may reuse them between rows.
+     */
+    public static class ObjectColumn extends Column {
+        private final Schema valueSchema;
+        private Object[] values = new Object[INITIAL_CAPACITY];
+
+        ObjectColumn(String name, int position, Schema valueSchema, boolean nullable) {
+            super(name, position, valueSchema.getType(), nullable);
+            this.valueSchema = valueSchema;
+        }
+
+        @Override
+        public Object getValue(int row) {
+            return isNull(row) ? null : values[row];
+        }
+
+        @Override
+        void setValue(int row, Object value) {
+            values[row] = GenericData.get().deepCopy(valueSchema, value);
+        }
+
+        @Override
+        void moveValue(int fromRow, int toRow) {
+            values[toRow] = values[fromRow];
+        }
+
+        @Override
+        void clearRows(int fromRow, int toRow) {
+            super.clearRows(fromRow, toRow);
+            Arrays.fill(values, fromRow, toRow, null);
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.protocol180.aggregator.enclave;
+
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.PublicKey;
+
+/**
+ * FileOutputAggregationEnclave adapts enclaves written against the File based output contract to
+ * {@link AggregationEnclave}: outputs are computed into avro serialized files by createRewardsDataOutput and
+ * createAggregateDataOutput, and each file is read back into the output buffer after every call. New enclaves should
+ * extend AggregationEnclave and implement its writeRewardsDataOutput and writeAggregateDataOutput methods instead.
+ */
+public abstract class FileOutputAggregationEnclave extends AggregationEnclave {
+
+    @Override
+    protected final void writeRewardsDataOutput(PublicKey providerKey, DataFileWriter<GenericRecord> dataFileWriter) throws IOException, UnsupportedDataTypeException {
+        appendAllFromFile(createRewardsDataOutput(providerKey), dataFileWriter);
+    }
+
+    @Override
+    protected final void writeAggregateDataOutput(DataFileWriter<GenericRecord> dataFileWriter) throws IOException, UnsupportedDataTypeException {
+        appendAllFromFile(createAggregateDataOutput(), dataFileWriter);
+    }
+
+    /**
+     * createRewardsDataOutput - calculates rewards for the data provider with the given public key, returning an avro
+     * serialized file containing Avro GenericRecord following the 'rewardsOutput' sub-schema.
+     * @see AggregationEnclave#writeRewardsDataOutput(PublicKey, DataFileWriter)
+     **/
+    protected abstract File createRewardsDataOutput(PublicKey providerKey) throws IOException, UnsupportedDataTypeException;
+
+    /**
+     * createAggregateDataOutput - calculates the data output for the data consumer(s), returning an avro serialized file
+     * containing Avro GenericRecord following the 'aggregateOutput' sub-schema.
+     * @see AggregationEnclave#writeAggregateDataOutput(DataFileWriter)
+     **/
+    protected abstract File createAggregateDataOutput() throws IOException, UnsupportedDataTypeException;
+
+    private void appendAllFromFile(File outputFile, DataFileWriter<GenericRecord> dataFileWriter) throws IOException {
+        try (DataFileReader<GenericRecord> dataFileReader = new DataFileReader<>(outputFile, new GenericDatumReader<>())) {
+            dataFileWriter.appendAllFrom(dataFileReader, false);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.protocol180.aggregator.enclave;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.jupiter.api.Test;
+
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the single pass aggregation engine over a columnar data store.
+ */
+public class AggregationEngineTest {
+
+    private static final Schema INPUT_SCHEMA = new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"AggregateInput\", \"fields\": [" +
+            "{\"name\": \"model\", \"type\": \"string\"}," +
+            "{\"name\": \"country\", \"type\": \"string\"}," +
+            "{\"name\": \"age\", \"type\": \"int\"}," +
+            "{\"name\": \"cancelled\", \"type\": \"boolean\"}," +
+            "{\"name\": \"price\", \"type\": [\"null\", \"double\"]}]}");
+
+    @Test
+    void computesAllQueriesInOneScan() throws NoSuchAlgorithmException {
+        ColumnarDataStore dataStore = new ColumnarDataStore(INPUT_SCHEMA);
+        int provider1Id = dataStore.addProvider(KeyPairGenerator.getInstance("EC").generateKeyPair().getPublic());
+        int provider2Id = dataStore.addProvider(KeyPairGenerator.getInstance("EC").generateKeyPair().getPublic());
+        append(dataStore, provider1Id, "Model 3", "US", 30, true, 10d);
+        append(dataStore, provider1Id, "Model 3", "UK", 30, false, 20d);
+        append(dataStore, provider1Id, "Superb", "US", 40, false, null);
+        append(dataStore, provider2Id, "Superb", "US", 40, true, 30d);
+
+        AggregationQuery byModel = AggregationQuery.groupBy("model")
+                .count("rows")
+                .sum("totalPrice", "price")
+                .avg("averagePrice", "price")
+                .distinctCount("countries", "country")
+                .percentage("cancelled", "cancelled");
+        AggregationQuery byModelCountryPerProvider = AggregationQuery.groupBy("model", "country").perProvider();
+        AggregationQuery byAge = AggregationQuery.groupBy("age").count("rows");
+        AggregationQuery all = AggregationQuery.groupBy().sum("totalPrice", "price");
+        List<AggregationResult> results = new AggregationEngine(dataStore).execute(byModel, byModelCountryPerProvider, byAge, all);
+
+        AggregationResult modelResult = results.get(0);
+        assertEquals(2, modelResult.getGroupCount());
+        assertEquals(2d, modelResult.toMap("rows").get("Model 3"));
+        assertEquals(30d, modelResult.toMap("totalPrice").get("Model 3"));
+        assertEquals(15d, modelResult.toMap("averagePrice").get("Model 3"));
+        assertEquals(30d, modelResult.toMap("averagePrice").get("Superb"));
+        assertEquals(2d, modelResult.toMap("countries").get("Model 3"));
+        assertEquals(1d, modelResult.toMap("countries").get("Superb"));
+        assertEquals(50d, modelResult.toMap("cancelled").get("Superb"));
+
+        AggregationResult perProviderResult = results.get(1);
+        assertEquals(4, perProviderResult.getGroupCount());
+        assertEquals(3, perProviderResult.getGroupCount(provider1Id));
+        assertEquals(1, perProviderResult.getGroupCount(provider2Id));
+        assertEquals(provider2Id, perProviderResult.getProviderId(3));
+        assertEquals("Superb", perProviderResult.getKey(3, 0));
+        assertEquals("US", perProviderResult.getKey(3, 1));
+
+        AggregationResult ageResult = results.get(2);
+        assertEquals(2, ageResult.getGroupCount());
+        assertEquals(30, ageResult.getKey(0, 0));
+        assertEquals(2, ageResult.getCount(1));
+
+        assertEquals(1, results.get(3).getGroupCount());
+        assertEquals(60d, results.get(3).getValue(0, "totalPrice"));
+        assertThrows(IllegalStateException.class, () -> perProviderResult.toMap("rows"));
+    }
+
+    private void append(ColumnarDataStore dataStore, int providerId, String model, String country, int age, boolean cancelled, Double price) {
+        GenericRecord record = new GenericData.Record(INPUT_SCHEMA);
+        record.put("model", model);
+        record.put("country", country);
+        record.put("age", age);
+        record.put("cancelled", cancelled);
+        record.put("price", price);
+        dataStore.appendRecord(providerId, record);
+    }
+}
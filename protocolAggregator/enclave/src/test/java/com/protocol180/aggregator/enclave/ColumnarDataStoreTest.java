@@ -0,0 +1,163 @@
+package com.protocol180.aggregator.enclave;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import org.junit.jupiter.api.Test;
+
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the columnar enclave data store outside of an enclave.
+ */
+public class ColumnarDataStoreTest {
+
+    private static final Schema INPUT_SCHEMA = new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"AggregateInput\", \"fields\": [" +
+            "{\"name\": \"model\", \"type\": \"string\"}," +
+            "{\"name\": \"ev\", \"type\": [\"null\", \"string\"]}," +
+            "{\"name\": \"units\", \"type\": \"int\"}," +
+            "{\"name\": \"discount\", \"type\": [\"null\", \"int\"]}," +
+            "{\"name\": \"average_price\", \"type\": \"float\"}]}");
+
+    @Test
+    void storesRowsInTypedColumns() throws NoSuchAlgorithmException {
+        ColumnarDataStore dataStore = new ColumnarDataStore(INPUT_SCHEMA);
+        PublicKey provider1 = randomPublicKey();
+        PublicKey provider2 = randomPublicKey();
+        int provider1Id = dataStore.addProvider(provider1);
+        int provider2Id = dataStore.addProvider(provider2);
+
+        //the same record instance is refilled for every row, as decoders do
+        GenericRecord record = new GenericData.Record(INPUT_SCHEMA);
+        Utf8 model = new Utf8();
+        for (int i = 0; i < 3000; i++) {
+            record.put("model", model.set(i % 2 == 0 ? "Model 3" : "Superb"));
+            record.put("ev", i % 3 == 0 ? null : "EV");
+            record.put("units", i);
+            record.put("discount", i % 5 == 0 ? null : 1);
+            record.put("average_price", 1.5f);
+            dataStore.appendRecord(i < 1000 ? provider1Id : provider2Id, record);
+        }
+
+        assertEquals(3000, dataStore.getRowCount());
+        assertEquals(2, dataStore.getProviderCount());
+        assertEquals(1000, dataStore.getProviderRowCount(provider1Id));
+        assertEquals(2000, dataStore.getProviderRowCount(provider2Id));
+        assertEquals(provider2, dataStore.getProvider(dataStore.getRowProviderId(2999)));
+        assertEquals(provider1Id, dataStore.addProvider(provider1));
+
+        ColumnarDataStore.StringColumn models = dataStore.getStringColumn("model");
+        assertEquals(2, models.getDictionarySize());
+        assertEquals("Model 3", models.getString(0));
+        assertEquals("Superb", models.getString(2999));
+        assertEquals(models.getCode(0), models.getCode(2));
+
+        ColumnarDataStore.StringColumn ev = dataStore.getStringColumn("ev");
+        assertTrue(ev.isNull(0));
+        assertEquals(-1, ev.getCode(0));
+        assertEquals("EV", ev.getString(1));
+
+        assertEquals(2999d, dataStore.getNumericColumn("units").getDouble(2999));
+        assertNull(dataStore.getColumn("discount").getValue(0));
+        assertEquals(1, dataStore.getColumn("discount").getValue(1));
+        assertEquals(1.5f, dataStore.getColumn("average_price").getValue(42));
+    }
+
+    @Test
+    void resetsTheRowsOfAProvider() throws NoSuchAlgorithmException {
+        ColumnarDataStore dataStore = new ColumnarDataStore(INPUT_SCHEMA);
+        PublicKey provider1 = randomPublicKey();
+        PublicKey provider2 = randomPublicKey();
+        int provider1Id = dataStore.addProvider(provider1);
+        int provider2Id = dataStore.addProvider(provider2);
+
+        GenericRecord record = new GenericData.Record(INPUT_SCHEMA);
+        for (int i = 0; i < 10; i++) {
+            record.put("model", i % 2 == 0 ? "Model 3" : "Superb");
+            record.put("ev", i % 2 == 0 ? null : "EV");
+            record.put("units", i);
+            record.put("discount", null);
+            record.put("average_price", 1.5f);
+            //rows of both providers interleave, as with chunked uploads
+            dataStore.appendRecord(i % 2 == 0 ? provider1Id : provider2Id, record);
+        }
+
+        dataStore.resetProvider(provider1);
+        assertEquals(5, dataStore.getRowCount());
+        assertEquals(0, dataStore.getProviderRowCount(provider1Id));
+        assertEquals(5, dataStore.getProviderRowCount(provider2Id));
+        for (int row = 0; row < 5; row++) {
+            assertEquals(provider2Id, dataStore.getRowProviderId(row));
+            assertEquals(row * 2 + 1d, dataStore.getNumericColumn("units").getDouble(row));
+            assertEquals("EV", dataStore.getStringColumn("ev").getString(row));
+        }
+
+        //the provider sends its data over again, rows set after the reset carry no stale null markers
+        record.put("ev", "EV");
+        record.put("discount", 2);
+        dataStore.appendRecord(dataStore.addProvider(provider1), record);
+        assertEquals(provider1Id, dataStore.getRowProviderId(5));
+        assertEquals("EV", dataStore.getStringColumn("ev").getString(5));
+        assertEquals(2, dataStore.getColumn("discount").getValue(5));
+        assertEquals(1, dataStore.getProviderRowCount(provider1Id));
+
+        dataStore.resetProvider(randomPublicKey());
+        assertEquals(6, dataStore.getRowCount());
+    }
+
+    @Test
+    void takesUnionNullabilityFromItsBranches() throws NoSuchAlgorithmException {
+        Schema schema = new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"AggregateInput\", \"fields\": [" +
+                "{\"name\": \"units\", \"type\": [\"int\", \"string\"]}," +
+                "{\"name\": \"discount\", \"type\": [\"null\", \"int\", \"string\"]}]}");
+        ColumnarDataStore dataStore = new ColumnarDataStore(schema);
+        int providerId = dataStore.addProvider(randomPublicKey());
+
+        GenericRecord record = new GenericData.Record(schema);
+        record.put("units", 7);
+        record.put("discount", null);
+        dataStore.appendRecord(providerId, record);
+        assertNull(dataStore.getColumn("discount").getValue(0));
+        assertEquals(7, dataStore.getColumn("units").getValue(0));
+
+        //a union without a null branch is not nullable
+        record.put("units", null);
+        assertThrows(IllegalArgumentException.class, () -> dataStore.appendRecord(providerId, record));
+    }
+
+    @Test
+    void returnsEnumValuesAsSymbols() throws NoSuchAlgorithmException {
+        Schema schema = new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"AggregateInput\", \"fields\": [" +
+                "{\"name\": \"ev\", \"type\": [\"null\", {\"type\": \"enum\", \"name\": \"Ev\", \"symbols\": [\"EV\", \"ICE\"]}]}]}");
+        Schema evSchema = schema.getField("ev").schema().getTypes().get(1);
+        ColumnarDataStore dataStore = new ColumnarDataStore(schema);
+        int providerId = dataStore.addProvider(randomPublicKey());
+
+        GenericRecord record = new GenericData.Record(schema);
+        record.put("ev", new GenericData.EnumSymbol(evSchema, "ICE"));
+        dataStore.appendRecord(providerId, record);
+        record.put("ev", null);
+        dataStore.appendRecord(providerId, record);
+
+        assertEquals(new GenericData.EnumSymbol(evSchema, "ICE"), dataStore.getColumn("ev").getValue(0));
+        assertEquals("ICE", dataStore.getStringColumn("ev").getString(0));
+        assertNull(dataStore.getColumn("ev").getValue(1));
+    }
+
+    @Test
+    void rejectsUnknownAndMistypedColumns() {
+        ColumnarDataStore dataStore = new ColumnarDataStore(INPUT_SCHEMA);
+        assertThrows(IllegalArgumentException.class, () -> dataStore.getColumn("country"));
+        assertThrows(IllegalArgumentException.class, () -> dataStore.getNumericColumn("model"));
+        assertThrows(IllegalArgumentException.class, () -> dataStore.getStringColumn("units"));
+    }
+
+    private PublicKey randomPublicKey() throws NoSuchAlgorithmException {
+        return KeyPairGenerator.getInstance("EC").generateKeyPair().getPublic();
+    }
+}
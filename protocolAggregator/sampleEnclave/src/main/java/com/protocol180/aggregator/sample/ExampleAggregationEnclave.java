@@ -1,24 +1,24 @@
 package com.protocol180.aggregator.sample;
 
 import com.protocol180.aggregator.enclave.AggregationEnclave;
+import com.protocol180.aggregator.enclave.AggregationQuery;
+import com.protocol180.aggregator.enclave.AggregationResult;
+import com.protocol180.aggregator.enclave.ColumnarDataStore;
+import org.apache.avro.Schema;
 import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.generic.GenericData;
-import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.io.DatumWriter;
 
-import java.io.File;
 import java.io.IOException;
 import java.security.PublicKey;
 import java.time.LocalDate;
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * The below enclave provides an example of how to write 180Protocol Broker Flow compatible Enclaves.
  * Example enclaves must handle data output and rewards calculations for coalition supported data types. These data
  * types and their associated schemas must be indicated as an Enum inside the Enclave.
- * The 'createRewardsDataOutput' and 'createAggregateDataOutput' methods must be designed to handle computations for each
+ * The 'writeRewardsDataOutput' and 'writeAggregateDataOutput' methods must be designed to handle computations for each
  * of the supported data types (and their corresponding schemas).
  **/
 public class ExampleAggregationEnclave extends AggregationEnclave {
@@ -44,47 +44,83 @@ public class ExampleAggregationEnclave extends AggregationEnclave {
      * Accepts the key of the provider for which the Rewards computation is done. Future implementations will support
      * calling a Rewards engine that calculates rewards factors automatically and based on regression.
      **/
-    protected File createRewardsDataOutput(PublicKey providerKey) throws IOException {
-        ArrayList<GenericRecord> clientRecords = clientToRawDataMap.get(providerKey);
-        ArrayList<GenericRecord> allRecords = new ArrayList<>();
-        clientToRawDataMap.values().forEach(genericRecords -> allRecords.addAll(genericRecords));
-
-        //populate rewards output file here based on raw client data
-        File outputFile = new File("rewardsOutput.avro");
-        DatumWriter<GenericRecord> datumWriter = new GenericDatumWriter<>(rewardsOutputSchema);
-
-        DataFileWriter<GenericRecord> dataFileWriter = new DataFileWriter<>(datumWriter);
-        dataFileWriter.create(rewardsOutputSchema, outputFile);
-
-        GenericRecord rewardRecord = new GenericData.Record(rewardsOutputSchema);
-        float amountProvided = (float) clientRecords.size() / (float) allRecords.size();
-        float completeness = (float) groupByModelCountryAndCalculateCount(clientRecords, "model", "country") / (float) groupByModelCountryAndCalculateCount(allRecords, "model", "country");
-        float uniqueness = (float) groupByAndCalculateCount(clientRecords, pivot.get(2)) / (float) groupByAndCalculateCount(allRecords, pivot.get(2));
-        float updateFrequency = (float) groupByDateAndCalculateCount(clientRecords, "date") / (float) groupByDateAndCalculateCount(allRecords, "date");
-        float qualityScore = (amountProvided + completeness + uniqueness + updateFrequency) / 4;
-        float rewards = qualityScore * 100;
+    @Override
+    protected void writeRewardsDataOutput(PublicKey providerKey, DataFileWriter<GenericRecord> dataFileWriter) throws IOException {
+        GenericRecord rewardRecord = createRewardsForAllProviders().get(providerKey);
+        if (rewardRecord == null)
+            throw new IOException("No data has been received from the provider requesting rewards");
 
-        switch (SupportedDataTypes.valueOf(envelopeSchema.getName())) {
-            case testSchema1:
-                rewardRecord.put("amountProvided", amountProvided);
-                rewardRecord.put("completeness", completeness);
-                rewardRecord.put("uniqueness", uniqueness);
-                rewardRecord.put("updateFrequency", updateFrequency);
-                rewardRecord.put("qualityScore", qualityScore);
-                rewardRecord.put("rewards", rewards);
-                rewardRecord.put("dataType", envelopeSchema.getName());
-                break;
-            default:
-                throw new IOException("Envelope Schema contains unsupported data type: " + envelopeSchema.getName());
-        }
-        try {
-            dataFileWriter.append(rewardRecord);
-        } catch (IOException e) {
-            e.printStackTrace();
+        //populate rewards output here based on raw client data
+        dataFileWriter.append(rewardRecord);
+    }
+
+    /**
+     * Provider rows are kept in the columnar data store, which the aggregations below scan directly.
+     **/
+    @Override
+    protected boolean useColumnarDataStore() {
+        return true;
+    }
+
+    /**
+     * method defined on AggregationEnclave interface that is overridden in the child enclave.
+     * Used to calculate rewards for all providers at once. The coalition wide totals and each provider's own counts
+     * are declared as aggregation queries and computed together in a single pass over the provider data.
+     **/
+    @Override
+    protected Map<PublicKey, GenericRecord> createRewardsForAllProviders() throws IOException {
+        List<AggregationResult> results = aggregate(
+                AggregationQuery.groupBy("model", "country"),
+                AggregationQuery.groupBy("model", "country").perProvider(),
+                AggregationQuery.groupBy(pivot.get(2)),
+                AggregationQuery.groupBy(pivot.get(2)).perProvider(),
+                AggregationQuery.groupBy("date").perProvider());
+        AggregationResult allModelCountries = results.get(0);
+        AggregationResult providerModelCountries = results.get(1);
+        AggregationResult allTypes = results.get(2);
+        AggregationResult providerTypes = results.get(3);
+        AggregationResult providerDates = results.get(4);
+
+        ColumnarDataStore dataStore = getDataStore();
+        Schema envelopeSchema = getEnvelopeSchema();
+        int providerCount = dataStore.getProviderCount();
+        int[] recentRecordCounts = new int[providerCount];
+        int allRecentRecordCount = 0;
+        LocalDate updateFrequencyCutOff = LocalDate.now().minusMonths(3);
+        for (int group = 0; group < providerDates.getGroupCount(); group++) {
+            String date = (String) providerDates.getKey(group, 0);
+            if (LocalDate.parse(date.substring(1, date.length() - 1)).isAfter(updateFrequencyCutOff)) {
+                recentRecordCounts[providerDates.getProviderId(group)] += providerDates.getCount(group);
+                allRecentRecordCount += providerDates.getCount(group);
+            }
         }
 
-        dataFileWriter.close();
-        return outputFile;
+        HashMap<PublicKey, GenericRecord> rewards = new HashMap<>();
+        for (int providerId = 0; providerId < providerCount; providerId++) {
+            GenericRecord rewardRecord = new GenericData.Record(getRewardsOutputSchema());
+            float amountProvided = (float) dataStore.getProviderRowCount(providerId) / (float) dataStore.getRowCount();
+            float completeness = (float) providerModelCountries.getGroupCount(providerId) / (float) allModelCountries.getGroupCount();
+            float uniqueness = (float) providerTypes.getGroupCount(providerId) / (float) allTypes.getGroupCount();
+            float updateFrequency = (float) recentRecordCounts[providerId] / (float) allRecentRecordCount;
+            float qualityScore = (amountProvided + completeness + uniqueness + updateFrequency) / 4;
+            float rewardsScore = qualityScore * 100;
+
+            switch (SupportedDataTypes.valueOf(envelopeSchema.getName())) {
+                case testSchema1:
+                    rewardRecord.put("amountProvided", amountProvided);
+                    rewardRecord.put("completeness", completeness);
+                    rewardRecord.put("uniqueness", uniqueness);
+                    rewardRecord.put("updateFrequency", updateFrequency);
+                    rewardRecord.put("qualityScore", qualityScore);
+                    rewardRecord.put("rewards", rewardsScore);
+                    rewardRecord.put("dataType", envelopeSchema.getName());
+                    break;
+                default:
+                    throw new IOException("Envelope Schema contains unsupported data type: " + envelopeSchema.getName());
+            }
+            rewards.put(dataStore.getProvider(providerId), rewardRecord);
+        }
+        return rewards;
     }
 
     /**
@@ -92,49 +128,47 @@ public class ExampleAggregationEnclave extends AggregationEnclave {
      * Used to calculate data output for a specific consumer.
      **/
     @Override
-    protected File createAggregateDataOutput() throws IOException {
-        //populate aggregate logic here based on raw client data and return output file
+    protected void writeAggregateDataOutput(DataFileWriter<GenericRecord> dataFileWriter) throws IOException {
+        //populate aggregate logic here based on raw client data and append it to the output
         convertEncryptedClientDataToRawData();
-
-        ArrayList<GenericRecord> allRecords = new ArrayList<>();
-        clientToRawDataMap.values().forEach(genericRecords -> allRecords.addAll(genericRecords));
-
-        File outputFile = new File("aggregateOutput.avro");
-        DatumWriter<GenericRecord> datumWriter = new GenericDatumWriter<>(aggregateOutputSchema);
-        DataFileWriter<GenericRecord> dataFileWriter = new DataFileWriter<>(datumWriter);
-        dataFileWriter.create(aggregateOutputSchema, outputFile);
-
+        Schema envelopeSchema = getEnvelopeSchema();
+        Schema aggregateOutputSchema = getAggregateOutputSchema();
 
         //simple aggregation of records into one file
         //other possibilities include creating a output with a specified schema
         switch (SupportedDataTypes.valueOf(envelopeSchema.getName())) {
             case testSchema1:
+                List<AggregationResult> results = aggregate(
+                        AggregationQuery.groupBy(pivot.get(3))
+                                .avg("averagePrice", "average_price")
+                                .sum("unitsSold", "units")
+                                .sum("totalSales", "total_sales"),
+                        AggregationQuery.groupBy("ev")
+                                .avg("averagePrice", "average_price"));
+                AggregationResult modelResult = results.get(0);
+                AggregationResult evResult = results.get(1);
+
                 GenericRecord demandRecord = new GenericData.Record(aggregateOutputSchema);
                 GenericRecord averagePriceRecord = new GenericData.Record(aggregateOutputSchema.getField("averagePrice").schema());
                 GenericRecord unitsSoldRecord = new GenericData.Record(aggregateOutputSchema.getField("unitsSold").schema());
                 GenericRecord totalSalesRecord = new GenericData.Record(aggregateOutputSchema.getField("totalSales").schema());
                 averagePriceRecord.put("pivotId", pivot.get(3));
-                averagePriceRecord.put("data", groupByAndCalculateAverage(allRecords, pivot.get(3), "average_price"));
+                averagePriceRecord.put("data", modelResult.toMap("averagePrice"));
                 unitsSoldRecord.put("pivotId", pivot.get(3));
-                unitsSoldRecord.put("data", groupByAndCalculateAverage(allRecords, pivot.get(3), "units"));
+                unitsSoldRecord.put("data", modelResult.toMap("unitsSold"));
                 totalSalesRecord.put("pivotId", pivot.get(3));
-                totalSalesRecord.put("data", groupByAndCalculateAverage(allRecords, pivot.get(3), "total_sales"));
+                totalSalesRecord.put("data", modelResult.toMap("totalSales"));
                 demandRecord.put("averagePrice", averagePriceRecord);
                 demandRecord.put("unitsSold", unitsSoldRecord);
                 demandRecord.put("totalSales", totalSalesRecord);
-                HashMap<String, Double> evAveragePriceRecords = groupByAndCalculateAverage(allRecords, "ev", "average_price");
-                HashMap<String, Double> evTotalSalesRecords = groupByAndCalculateAverage(allRecords, "ev", "average_price");
+                Map<String, Double> evAveragePriceRecords = evResult.toMap("averagePrice");
                 demandRecord.put("evPremium", (evAveragePriceRecords.get("\"EV\"") / evAveragePriceRecords.get("\"\"")) - 1);
-                demandRecord.put("evMarketShare", evTotalSalesRecords.get("\"EV\"") / (evTotalSalesRecords.get("\"EV\"") + evTotalSalesRecords.get("\"\"")));
+                demandRecord.put("evMarketShare", evAveragePriceRecords.get("\"EV\"") / (evAveragePriceRecords.get("\"EV\"") + evAveragePriceRecords.get("\"\"")));
                 dataFileWriter.append(demandRecord);
                 break;
             default:
                 throw new IOException("Envelope Schema contains unsupported data type: " + envelopeSchema.getName());
         }
-
-
-        dataFileWriter.close();
-        return outputFile;
     }
 
     public class Application {
@@ -156,66 +190,4 @@ public class ExampleAggregationEnclave extends AggregationEnclave {
     private float getRandomNumber(int minLimit, int maxLimit, double decimalPlace) {
         return (float) (Math.round(((minLimit + random.nextFloat() * (maxLimit - minLimit)) * decimalPlace)) / decimalPlace);
     }
-
-    public HashMap<String, Double> groupByAndCalculateAverage(ArrayList<GenericRecord> allRecords, String groupByField, String field) {
-        HashMap<String, Double> data = new HashMap<>();
-        allRecords.stream()
-                .collect(Collectors.groupingBy(
-                        genericRecord -> genericRecord.get(groupByField),
-                        Collectors.summarizingDouble(genericRecord -> Objects.equals(field, "units") ? (int) genericRecord.get(field) : (float) genericRecord.get(field))
-                )).forEach((k, v) -> {
-                    data.put(k.toString(), Objects.equals(field, "average_price") ? v.getSum() / v.getCount() : v.getSum());
-                });
-
-        return data;
-    }
-
-    public int groupByAndCalculateCount(ArrayList<GenericRecord> allRecords, String groupByField) {
-        Map<Object, Long> counted = allRecords.stream()
-                .collect(Collectors.groupingBy(
-                        genericRecord -> genericRecord.get(groupByField),
-                        Collectors.counting()
-                ));
-
-        return counted.size();
-    }
-
-    public int groupByModelCountryAndCalculateCount(ArrayList<GenericRecord> allRecords, String model, String country) {
-        Map<Object, Map<Object, Long>> groupedRecords = allRecords.stream()
-                .collect(Collectors.groupingBy(
-                        genericRecord -> genericRecord.get(model),
-                        Collectors.groupingBy(
-                                genericRecord -> genericRecord.get(country),
-                                Collectors.counting())
-                ));
-
-        int count = 0;
-        for (Map.Entry<Object, Map<Object, Long>> entry : groupedRecords.entrySet()) {
-            Object key = entry.getKey();
-            Map<Object, Long> value = entry.getValue();
-            count += value.size();
-        }
-
-        return count;
-    }
-
-    public int groupByDateAndCalculateCount(ArrayList<GenericRecord> allRecords, String date) {
-        Map<Object, Long> groupByDateRecords = allRecords.stream()
-                .collect(Collectors.groupingBy(
-                        genericRecord -> genericRecord.get(date),
-                        Collectors.counting()
-                ));
-
-        LocalDate currentDate = LocalDate.now().minusMonths(3);
-        long total = 0;
-        for (Map.Entry<Object, Long> entry : groupByDateRecords.entrySet()) {
-            Object k = entry.getKey();
-            Long v = entry.getValue();
-            if (LocalDate.parse(k.toString().substring(1, k.toString().length() - 1)).isAfter(currentDate)) {
-                total += v;
-            }
-        }
-
-        return (int) total;
-    }
-}
\ No newline at end of file
+}
@@ -1,45 +1,215 @@
 package com.protocol180.aggregator.flow;
 
+import com.protocol180.aggregator.commons.HostCommand;
 import com.r3.conclave.host.AttestationParameters;
 import com.r3.conclave.host.EnclaveHost;
 import com.r3.conclave.host.EnclaveLoadException;
 import com.r3.conclave.host.MailCommand;
 import com.r3.conclave.mail.MailDecryptionException;
-import net.corda.core.flows.FlowExternalOperation;
+import net.corda.core.flows.FlowExternalAsyncOperation;
 import net.corda.core.flows.FlowLogic;
+import net.corda.core.cordapp.CordappConfig;
 import net.corda.core.node.AppServiceHub;
 import net.corda.core.node.services.CordaService;
 import net.corda.core.serialization.SingletonSerializeAsToken;
+import kotlin.Unit;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * This corda service provides functionality to load an enclave into the node.
- * Call the {@link #loadEnclaveForAggregation(String, String)} method with the
- * flow Id & class name of the enclave, and then use it from flows.
+ * This corda service provides functionality to load enclaves into the node and run aggregations on them.
+ * Started enclaves are kept in an {@link EnclavePool} per enclave class and leased to aggregations, each aggregation
+ * running in its own enclave session. The target size of the pools is read from the CorDapp config key
+ * {@value #ENCLAVE_POOL_SIZE_CONFIG_KEY} (1 by default), and the pools of the enclave classes listed under
+ * {@value #ENCLAVE_POOL_PRELOAD_CONFIG_KEY} (comma separated) are started together with the node.
+ * Await the operation returned by {@link #openAggregationSession(String, String)} with the session Id & class name of
+ * the enclave, and then use it from flows.
+ * The service manages the lifecycle of the enclaves it starts:
+ * - at most {@value #MAX_LIVE_ENCLAVES_CONFIG_KEY} enclaves (8 by default) are live at once across all pools, and a
+ * session that needs a new enclave beyond that waits up to {@value #ENCLAVE_ADMISSION_TIMEOUT_CONFIG_KEY} seconds
+ * (60 by default) for one to be closed
+ * - sessions their flow neither used nor marked active for {@value #ENCLAVE_IDLE_TIMEOUT_CONFIG_KEY} seconds (600 by
+ * default) are considered leaked by their flow and closed, as are enclaves above a pool's target size left idle that
+ * long. Flows mark their session active with {@link #markAggregationSessionActive(String)} each time before waiting on
+ * their counterparties, so the timeout must only exceed the longest a single such wait may take
+ * - flows waiting for the enclave to reply to their mail are failed after {@value #ENCLAVE_MAIL_TIMEOUT_CONFIG_KEY}
+ * seconds (300 by default), or as soon as the enclave fails to process the mail
+ * - every enclave is closed when the node shuts down
+ * Counters of loaded and closed enclaves and of leaked sessions are available for monitoring.
  */
 @CordaService
 public class EnclaveHostService extends SingletonSerializeAsToken {
 
-    // A map to store & track enclave loaded for each aggregation cycle launched from consumer node
-    private Map<String, EnclaveHost> enclaveHostCollection;
+    private static final Logger log = LoggerFactory.getLogger(EnclaveHostService.class);
+
+    public static final String ENCLAVE_POOL_SIZE_CONFIG_KEY = "enclavePoolSize";
+    public static final String ENCLAVE_POOL_PRELOAD_CONFIG_KEY = "enclavePoolPreload";
+    public static final String MAX_LIVE_ENCLAVES_CONFIG_KEY = "maxLiveEnclaves";
+    public static final String ENCLAVE_ADMISSION_TIMEOUT_CONFIG_KEY = "enclaveAdmissionTimeoutSeconds";
+    public static final String ENCLAVE_IDLE_TIMEOUT_CONFIG_KEY = "enclaveIdleTimeoutSeconds";
+    public static final String ENCLAVE_MAIL_TIMEOUT_CONFIG_KEY = "enclaveMailTimeoutSeconds";
+
+    private final int enclavePoolSize;
+    private final long admissionTimeoutSeconds;
+    private final long idleTimeoutMillis;
+    private final long mailTimeoutSeconds;
+
+    // Pools of started enclaves per enclave class, shared by all the aggregation sessions running on them
+    private final Map<String, EnclavePool> enclavePools = new HashMap<>();
+
+    // One permit per enclave that may be live at once
+    private final Semaphore liveEnclavePermits;
+
+    private final AtomicLong loadedEnclaveCount = new AtomicLong();
+    private final AtomicLong closedEnclaveCount = new AtomicLong();
+    private final AtomicLong leakedSessionCount = new AtomicLong();
+
+    // Enclaves are started in the background, off the flow threads
+    private final ExecutorService enclaveWarmUpExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "enclave-pool-warm-up");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ScheduledExecutorService enclaveReaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "enclave-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Fails mail pickups the enclave doesn't reply to in time
+    private final ScheduledExecutorService mailTimeoutScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "enclave-mail-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // A map to track the enclave session of each aggregation cycle launched from consumer node
+    private final Map<String, AggregationSession> enclaveHostCollection = Collections.synchronizedMap(new HashMap<>());
 
     // A map of flow (state machine) IDs to futures that become complete when the enclave tries to deliver mail to them.
     private final Map<UUID, CompletableFuture<byte[]>> mailFutures = Collections.synchronizedMap(new HashMap<>());
 
+    // A map of flow IDs to futures that become complete once the enclave replied to every mail of a batch.
+    private final Map<UUID, CompletableFuture<List<byte[]>>> batchMailFutures = Collections.synchronizedMap(new HashMap<>());
+
+    // A map of flow IDs to the batch of mails they are handing to the enclave, until they pick up its replies.
+    private final Map<UUID, MailBatch> mailBatches = new ConcurrentHashMap<>();
+
+    // A map of session IDs to futures that become complete once the session's enclave lease is granted.
+    private final Map<String, CompletableFuture<Boolean>> sessionLeases = new ConcurrentHashMap<>();
+
     public EnclaveHostService(@NotNull AppServiceHub serviceHub) {
-        enclaveHostCollection = new HashMap<>();
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        enclavePoolSize = config.exists(ENCLAVE_POOL_SIZE_CONFIG_KEY) ? config.getInt(ENCLAVE_POOL_SIZE_CONFIG_KEY) : 1;
+        liveEnclavePermits = new Semaphore(config.exists(MAX_LIVE_ENCLAVES_CONFIG_KEY) ? config.getInt(MAX_LIVE_ENCLAVES_CONFIG_KEY) : 8);
+        admissionTimeoutSeconds = config.exists(ENCLAVE_ADMISSION_TIMEOUT_CONFIG_KEY) ? config.getLong(ENCLAVE_ADMISSION_TIMEOUT_CONFIG_KEY) : 60;
+        idleTimeoutMillis = TimeUnit.SECONDS.toMillis(config.exists(ENCLAVE_IDLE_TIMEOUT_CONFIG_KEY) ? config.getLong(ENCLAVE_IDLE_TIMEOUT_CONFIG_KEY) : 600);
+        mailTimeoutSeconds = config.exists(ENCLAVE_MAIL_TIMEOUT_CONFIG_KEY) ? config.getLong(ENCLAVE_MAIL_TIMEOUT_CONFIG_KEY) : 300;
+
+        long reaperPeriodMillis = Math.max(1000, idleTimeoutMillis / 4);
+        enclaveReaper.scheduleWithFixedDelay(this::reapIdle, reaperPeriodMillis, reaperPeriodMillis, TimeUnit.MILLISECONDS);
+        serviceHub.registerUnloadHandler(() -> {
+            shutdown();
+            return Unit.INSTANCE;
+        });
+
+        if (config.exists(ENCLAVE_POOL_PRELOAD_CONFIG_KEY)) {
+            for (String enclaveClassName : config.getString(ENCLAVE_POOL_PRELOAD_CONFIG_KEY).split(",")) {
+                if (!enclaveClassName.trim().isEmpty())
+                    getEnclavePool(enclaveClassName.trim()).warmUp();
+            }
+        }
+    }
+
+    /**
+     * Opens an aggregation session on an enclave of the given class leased from its pool. The session must be
+     * initialized with {@link #initializeAvroSchema(String, byte[])} before mail is delivered to it, and closed with
+     * {@link #closeAggregationSession(String)} once the aggregation is over, whether it succeeded or not.
+     *
+     * @return An operation that can be passed to {@link FlowLogic#await(FlowExternalAsyncOperation)} to suspend the flow
+     * until the session is open, which takes an enclave to start first if none of the pool has started yet.
+     */
+    protected FlowExternalAsyncOperation<Boolean> openAggregationSession(@NotNull String sessionId, @NotNull String enclaveClassName) {
+        return openAggregationSession(sessionId, enclaveClassName, null);
     }
 
-    protected void loadEnclaveForAggregation(@NotNull String flowId, @NotNull String enclaveClassName) {
+    /**
+     * Opens an aggregation session on the enclave of the given class last leased with the affinity key, if it is still
+     * in the pool, e.g. for sessions building on the provider rows that enclave retained for incremental uploads.
+     */
+    protected FlowExternalAsyncOperation<Boolean> openAggregationSession(@NotNull String sessionId, @NotNull String enclaveClassName,
+                                                                         @Nullable String affinityKey) {
+        EnclavePool enclavePool = getEnclavePool(enclaveClassName);
+        sessionLeases.put(sessionId, enclavePool.lease(affinityKey).thenApply(enclave -> {
+            enclaveHostCollection.put(sessionId, new AggregationSession(sessionId, enclavePool, enclave));
+            return true;
+        }));
+        return new LeaseOperation(sessionId);
+    }
+
+    private EnclavePool getEnclavePool(String enclaveClassName) {
+        synchronized (enclavePools) {
+            EnclavePool enclavePool = enclavePools.get(enclaveClassName);
+            if (enclavePool == null) {
+                enclavePool = new EnclavePool(enclaveClassName, enclavePoolSize, new ManagedEnclaveLifecycle(), enclaveWarmUpExecutor);
+                enclavePools.put(enclaveClassName, enclavePool);
+            }
+            return enclavePool;
+        }
+    }
+
+    /**
+     * Admits every enclave started by the pools against the maximum number of live enclaves and counts enclaves
+     * loaded and closed.
+     */
+    private class ManagedEnclaveLifecycle implements EnclavePool.EnclaveLifecycle {
+        @Override
+        public EnclaveHost start(String enclaveClassName, boolean waitForAdmission) {
+            boolean admitted;
+            try {
+                admitted = waitForAdmission
+                        ? liveEnclavePermits.tryAcquire(admissionTimeoutSeconds, TimeUnit.SECONDS)
+                        : liveEnclavePermits.tryAcquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting to start enclave " + enclaveClassName, e);
+            }
+            if (!admitted) {
+                if (waitForAdmission)
+                    throw new IllegalStateException("Maximum number of live enclaves reached, unable to start enclave " + enclaveClassName);
+                return null;
+            }
+            try {
+                EnclaveHost enclaveHost = loadEnclave(enclaveClassName);
+                loadedEnclaveCount.incrementAndGet();
+                return enclaveHost;
+            } catch (RuntimeException e) {
+                liveEnclavePermits.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close(EnclaveHost enclaveHost) {
+            try {
+                enclaveHost.close();
+            } catch (RuntimeException e) {
+                log.warn("Failed to close enclave", e);
+            } finally {
+                closedEnclaveCount.incrementAndGet();
+                liveEnclavePermits.release();
+            }
+        }
+    }
+
+    private EnclaveHost loadEnclave(String enclaveClassName) {
         try {
             EnclaveHost enclaveHost = EnclaveHost.load(enclaveClassName);
             // If you want to use pre-DCAP hardware via the older EPID protocol, you'll need to get the relevant API
@@ -56,8 +226,7 @@ public class EnclaveHostService extends SingletonSerializeAsToken {
                     }
                 }
             });
-
-            enclaveHostCollection.put(flowId,enclaveHost);
+            return enclaveHost;
         } catch (EnclaveLoadException e) {
             throw new RuntimeException(e);   // Propagate and let the node abort startup, as this shouldn't happen.
         }
@@ -79,21 +248,218 @@ public class EnclaveHostService extends SingletonSerializeAsToken {
         }
     }
 
-    public void initializeAvroSchema(String flowId, byte[] schemaBytes) {
-        enclaveHostCollection.get(flowId).callEnclave(schemaBytes);
+    public void initializeAvroSchema(String sessionId, byte[] schemaBytes) {
+        initializeAvroSchema(sessionId, schemaBytes, null);
     }
 
-    public void removeEnclave(String flowId){
-        enclaveHostCollection.remove(flowId);
+    /**
+     * Initializes the session with the envelope schema, and has the enclave compress the session's outputs with the
+     * given Avro codec unless it is null.
+     */
+    public void initializeAvroSchema(String sessionId, byte[] schemaBytes, String outputCodec) {
+        EnclaveHost enclaveHost = getEnclaveHost(sessionId);
+        enclaveHost.callEnclave(HostCommand.initSession(sessionId, schemaBytes).serialize());
+        if (outputCodec != null)
+            enclaveHost.callEnclave(HostCommand.setOutputCodec(sessionId, outputCodec).serialize());
     }
 
+    /**
+     * Sizes the provider inputs the session's enclave retains for incremental uploads to the coalition, one input per
+     * provider and data type.
+     */
+    public void setRetainedInputCount(String sessionId, int retainedInputCount) {
+        getEnclaveHost(sessionId).callEnclave(HostCommand.setRetainedInputCount(sessionId, retainedInputCount).serialize());
+    }
+
+    /**
+     * Has the enclave load the outputs of an earlier aggregation over the inputs whose digests the session's providers
+     * reported. Returns true if the enclave still held them, in which case the session serves its consumers and
+     * providers' rewards without receiving any provider data.
+     */
+    public boolean loadCachedOutput(String sessionId) {
+        byte[] reply = getEnclaveHost(sessionId).callEnclave(HostCommand.loadCachedOutput(sessionId).serialize());
+        return reply != null && HostCommand.CACHED_OUTPUT_LOADED.equals(new String(reply));
+    }
+
+    /**
+     * Drops the session and the data the enclave holds for it, and returns the enclave to its pool for later sessions.
+     * The outputs cached and the provider inputs retained by the enclave outlive the session. Closing a session that is
+     * not open (anymore) has no effect.
+     * The session is closed on its delivery thread, after the mail already handed to it, and the enclave only returns
+     * to its pool once that is done, so no mail of the session reaches the enclave after it was leased to another one.
+     * If the enclave doesn't close the session within the mail timeout, the pool replaces it.
+     */
+    public void closeAggregationSession(String sessionId) {
+        AggregationSession session = enclaveHostCollection.remove(sessionId);
+        if (session == null)
+            return;
+        RuntimeException resetFailure = null;
+        try {
+            Future<?> close = session.mailDeliveryExecutor.submit(() ->
+                    session.enclave.enclaveHost.callEnclave(HostCommand.closeSession(sessionId).serialize()));
+            session.mailDeliveryExecutor.shutdown();
+            close.get(mailTimeoutSeconds, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            // the aggregation itself is over, the pool replaces the enclave
+            resetFailure = new IllegalStateException("Enclave failed to close session " + sessionId, e.getCause());
+        } catch (TimeoutException e) {
+            session.mailDeliveryExecutor.shutdownNow();
+            resetFailure = new IllegalStateException("Enclave did not close session " + sessionId + " within " + mailTimeoutSeconds + " seconds", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            session.mailDeliveryExecutor.shutdownNow();
+            resetFailure = new IllegalStateException("Interrupted while closing enclave session " + sessionId, e);
+        } catch (RuntimeException e) {
+            resetFailure = e;
+        }
+        session.enclavePool.release(session.enclave, resetFailure);
+    }
+
+    /**
+     * Marks the session active, so it is not considered leaked while its flow waits on its counterparties, e.g. on
+     * providers sending their data, rather than on the enclave.
+     */
+    public void markAggregationSessionActive(String sessionId) {
+        getSession(sessionId);
+    }
+
+    private AggregationSession getSession(String sessionId) {
+        AggregationSession session = enclaveHostCollection.get(sessionId);
+        if (session == null)
+            throw new IllegalStateException("No enclave session is open for " + sessionId);
+        session.lastActivity = System.currentTimeMillis();
+        return session;
+    }
+
+    private EnclaveHost getEnclaveHost(String sessionId) {
+        return getSession(sessionId).enclave.enclaveHost;
+    }
+
+    /**
+     * Closes sessions their flow left without activity for longer than the idle timeout, failing the flows still
+     * waiting for mail from them, and enclaves left idle in their pool for as long. Sessions with mail the enclave has
+     * yet to reply to are not idle, the mail timeout bounds these waits.
+     */
+    private void reapIdle() {
+        try {
+            long now = System.currentTimeMillis();
+            List<AggregationSession> sessions;
+            synchronized (enclaveHostCollection) {
+                sessions = new ArrayList<>(enclaveHostCollection.values());
+            }
+            for (AggregationSession session : sessions) {
+                if (now - session.lastActivity > idleTimeoutMillis && !isAwaitingEnclave(session)) {
+                    log.warn("Closing enclave session " + session.sessionId + " left idle by its flow");
+                    leakedSessionCount.incrementAndGet();
+                    closeAggregationSession(session.sessionId);
+                    for (UUID flowId : session.flowIds) {
+                        CompletableFuture<byte[]> future = mailFutures.get(flowId);
+                        if (future != null)
+                            future.completeExceptionally(new IllegalStateException("Enclave session " + session.sessionId + " was closed after being idle"));
+                        CompletableFuture<List<byte[]>> batchFuture = batchMailFutures.get(flowId);
+                        if (batchFuture != null)
+                            batchFuture.completeExceptionally(new IllegalStateException("Enclave session " + session.sessionId + " was closed after being idle"));
+                    }
+                }
+            }
+            List<EnclavePool> pools;
+            synchronized (enclavePools) {
+                pools = new ArrayList<>(enclavePools.values());
+            }
+            for (EnclavePool pool : pools) {
+                pool.reapIdle(now, idleTimeoutMillis);
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to reap idle enclaves", e);
+        }
+    }
+
+    private boolean isAwaitingEnclave(AggregationSession session) {
+        for (UUID flowId : session.flowIds) {
+            if (mailFutures.containsKey(flowId) || batchMailFutures.containsKey(flowId) || mailBatches.containsKey(flowId))
+                return true;
+        }
+        return false;
+    }
+
+    private void shutdown() {
+        enclaveReaper.shutdownNow();
+        mailTimeoutScheduler.shutdownNow();
+        enclaveWarmUpExecutor.shutdownNow();
+        List<String> sessionIds;
+        synchronized (enclaveHostCollection) {
+            sessionIds = new ArrayList<>(enclaveHostCollection.keySet());
+        }
+        for (String sessionId : sessionIds) {
+            closeAggregationSession(sessionId);
+        }
+        synchronized (enclavePools) {
+            for (EnclavePool pool : enclavePools.values()) {
+                pool.closeAll();
+            }
+        }
+    }
+
+    /**
+     * Number of enclaves started by the service since the node started.
+     */
+    public long getLoadedEnclaveCount() {
+        return loadedEnclaveCount.get();
+    }
+
+    /**
+     * Number of enclaves closed by the service since the node started.
+     */
+    public long getClosedEnclaveCount() {
+        return closedEnclaveCount.get();
+    }
+
+    /**
+     * Number of enclaves currently started, the difference between loaded and closed enclaves.
+     */
+    public long getLiveEnclaveCount() {
+        return loadedEnclaveCount.get() - closedEnclaveCount.get();
+    }
+
+    /**
+     * Number of sessions that were never closed by their flow and had to be closed by the idle reaper.
+     */
+    public long getLeakedSessionCount() {
+        return leakedSessionCount.get();
+    }
+
+    /**
+     * An open aggregation session together with the enclave leased to it.
+     */
+    private static class AggregationSession {
+        final String sessionId;
+        final EnclavePool enclavePool;
+        final EnclavePool.PooledEnclave enclave;
+        // A single mail delivery thread per session, so flows don't block inside the enclave while it processes mail.
+        // Mail for one session is still delivered strictly in the order it was handed over.
+        final ExecutorService mailDeliveryExecutor;
+        // Flows that delivered mail to the session
+        final Set<UUID> flowIds = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        volatile long lastActivity = System.currentTimeMillis();
+
+        AggregationSession(String sessionId, EnclavePool enclavePool, EnclavePool.PooledEnclave enclave) {
+            this.sessionId = sessionId;
+            this.enclavePool = enclavePool;
+            this.enclave = enclave;
+            this.mailDeliveryExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "enclave-mail-" + sessionId);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
 
     /**
      * Returns serialised {@link com.r3.conclave.common.EnclaveInstanceInfo} object that represents the identity of the
-     * loaded enclave.
+     * enclave serving the session.
      */
-    public byte[] getAttestationBytes(String flowId){
-        return enclaveHostCollection.get(flowId).getEnclaveInstanceInfo().serialize();
+    public byte[] getAttestationBytes(String sessionId){
+        return getEnclaveHost(sessionId).getEnclaveInstanceInfo().serialize();
     }
 
     /**
@@ -101,18 +467,35 @@ public class EnclaveHostService extends SingletonSerializeAsToken {
      * chooses to send a reply. This may not happen immediately. This is equivalent to calling
      * {@link #pickUpMail(FlowLogic)} on the flow, then {@link # deliverMail(byte[])}, then returning the result of
      * the receiveMail call.
+     * The mail is handed to the enclave on the session's delivery thread, so the calling flow doesn't hold a flow
+     * thread while the enclave processes it. If the enclave fails to process the mail the returned operation fails
+     * with the cause.
      *
      * @param flow          The flow from which the mail is being received.
+     * @param sessionId     The aggregation session the mail belongs to.
      * @param encryptedMail The contents of the mail.
-     * @return An operation that can be passed to {@link FlowLogic#await(FlowExternalOperation)} to suspend the flow until
+     * @return An operation that can be passed to {@link FlowLogic#await(FlowExternalAsyncOperation)} to suspend the flow until
      * the enclave provides a mail to send.
      */
-    public FlowExternalOperation<byte[]> deliverAndPickUpMail(FlowLogic<?> flow, byte[] encryptedMail) throws MailDecryptionException {
+    public FlowExternalAsyncOperation<byte[]> deliverAndPickUpMail(FlowLogic<?> flow, String sessionId, byte[] encryptedMail) throws MailDecryptionException {
         // Prepare the object that the enclave will signal if it wants to send a response. It must be in the map
         // before we enter the enclave, as the enclave may immediately call back to request we deliver a response
         // and that will happen on the same call stack.
-        FlowExternalOperation<byte[]> operation = pickUpMail(flow);
-        enclaveHostCollection.get(flow.getRunId().getUuid().toString()).deliverMail(encryptedMail, flow.getRunId().getUuid().toString());
+        FlowExternalAsyncOperation<byte[]> operation = pickUpMail(flow);
+        UUID flowUuid = flow.getRunId().getUuid();
+        String routingHint = HostCommand.routingHint(sessionId, flowUuid.toString());
+        AggregationSession session = getSession(sessionId);
+        session.flowIds.add(flowUuid);
+        session.mailDeliveryExecutor.execute(() -> {
+            try {
+                session.enclave.enclaveHost.deliverMail(encryptedMail, routingHint);
+                session.lastActivity = System.currentTimeMillis();
+            } catch (Exception e) {
+                CompletableFuture<byte[]> future = mailFutures.get(flowUuid);
+                if (future != null)
+                    future.completeExceptionally(e);
+            }
+        });
         // The operation might be completed already, but if not, the flow can sleep until the enclave decides to
         // reply (e.g. due to some other mail from some other flow) by calling await on this operation.
         return operation;
@@ -120,13 +503,96 @@ public class EnclaveHostService extends SingletonSerializeAsToken {
 
 
     /**
-     * Returns an operation that can be passed to {@link FlowLogic#await(FlowExternalOperation)} which will suspend
+     * Delivers a batch of mails to the enclave, one after the other, and returns an operation that can be used to
+     * suspend a flow until the enclave replied to all of them. The replies are in the order of the mails. Unlike
+     * {@link #deliverAndPickUpMail(FlowLogic, String, byte[])}, the enclave must reply to each mail while processing it,
+     * as it does to reward requests, and the operation fails otherwise.
+     * Suspending once for the whole batch, rather than once per mail, spares the flow a checkpoint per mail.
+     *
+     * @param flow           The flow from which the mails are being received.
+     * @param sessionId      The aggregation session the mails belong to.
+     * @param encryptedMails The contents of the mails.
+     * @return An operation that can be passed to {@link FlowLogic#await(FlowExternalAsyncOperation)} to suspend the flow until
+     * the enclave provides the mails to send.
+     */
+    public FlowExternalAsyncOperation<List<byte[]>> deliverAndPickUpMails(FlowLogic<?> flow, String sessionId, List<byte[]> encryptedMails) {
+        for (byte[] encryptedMail : encryptedMails) {
+            deliverBatchMail(flow, sessionId, encryptedMail);
+        }
+        return pickUpBatchMails(flow, sessionId);
+    }
+
+    /**
+     * Adds a mail to the batch the flow is delivering to the enclave, and hands it to the enclave on the session's
+     * delivery thread without waiting for it to be processed. The flow can so carry on, e.g. receive the next
+     * provider's data while the enclave decodes this one, and picks up the replies to the whole batch with
+     * {@link #pickUpBatchMails(FlowLogic, String)}. The enclave must reply to each mail while processing it.
+     */
+    public void deliverBatchMail(FlowLogic<?> flow, String sessionId, byte[] encryptedMail) {
+        UUID flowUuid = flow.getRunId().getUuid();
+        String routingHint = HostCommand.routingHint(sessionId, flowUuid.toString());
+        AggregationSession session = getSession(sessionId);
+        session.flowIds.add(flowUuid);
+        MailBatch batch = mailBatches.computeIfAbsent(flowUuid, id -> new MailBatch());
+        session.mailDeliveryExecutor.execute(() -> {
+            // mails after a failed one are not delivered, the batch fails as a whole
+            if (batch.failure != null)
+                return;
+            try {
+                CompletableFuture<byte[]> future = new CompletableFuture<>();
+                mailFutures.put(flowUuid, future);
+                session.enclave.enclaveHost.deliverMail(encryptedMail, routingHint);
+                if (!future.isDone())
+                    throw new IllegalStateException("Enclave did not reply to mail " + batch.replies.size() + " of the batch");
+                batch.replies.add(future.get());
+                session.lastActivity = System.currentTimeMillis();
+            } catch (Exception e) {
+                batch.failure = e;
+            } finally {
+                mailFutures.remove(flowUuid);
+            }
+        });
+    }
+
+    /**
+     * Returns an operation that can be used to suspend a flow until the enclave processed every mail of the batch the
+     * flow delivered with {@link #deliverBatchMail(FlowLogic, String, byte[])}, completing with the replies in the
+     * order of the mails, or failing with the cause of the first mail the enclave failed to process.
+     */
+    public FlowExternalAsyncOperation<List<byte[]>> pickUpBatchMails(FlowLogic<?> flow, String sessionId) {
+        UUID flowUuid = flow.getRunId().getUuid();
+        CompletableFuture<List<byte[]>> batchFuture = new CompletableFuture<>();
+        batchMailFutures.put(flowUuid, batchFuture);
+        AggregationSession session = getSession(sessionId);
+        MailBatch batch = mailBatches.remove(flowUuid);
+        // runs once the mails of the batch handed to the session's delivery thread before it were processed
+        session.mailDeliveryExecutor.execute(() -> {
+            if (batch == null)
+                batchFuture.complete(Collections.emptyList());
+            else if (batch.failure != null)
+                batchFuture.completeExceptionally(batch.failure);
+            else
+                batchFuture.complete(batch.replies);
+        });
+        return new BatchReceiveOperation(flowUuid);
+    }
+
+    /**
+     * The replies to the mails of a batch, only accessed on the delivery thread of the batch's session.
+     */
+    private static class MailBatch {
+        final List<byte[]> replies = new ArrayList<>();
+        Exception failure;
+    }
+
+    /**
+     * Returns an operation that can be passed to {@link FlowLogic#await(FlowExternalAsyncOperation)} which will suspend
      * the flow until the enclave chooses to deliver a mail to it (e.g. because it received a mail from a different flow).
      *
      * @param flow The flow that the enclave may wish to deliver mail to.
      * @return The operation that can be used to suspend until the enclave is ready.
      */
-    public FlowExternalOperation<byte[]> pickUpMail(FlowLogic<?> flow) {
+    public FlowExternalAsyncOperation<byte[]> pickUpMail(FlowLogic<?> flow) {
         UUID flowID = flow.getRunId().getUuid();
         CompletableFuture<byte[]> future = new CompletableFuture<>();
         synchronized (mailFutures) {
@@ -138,8 +604,22 @@ public class EnclaveHostService extends SingletonSerializeAsToken {
         return new ReceiveOperation(flowID);
     }
 
+    /**
+     * Fails the future if it isn't complete within the mail timeout, so a flow never waits forever for an enclave that
+     * won't reply. The future is removed from the given map once complete, however that happens.
+     */
+    private <T> CompletableFuture<T> withMailTimeout(UUID flowID, CompletableFuture<T> future, Map<UUID, CompletableFuture<T>> futures) {
+        ScheduledFuture<?> timeout = mailTimeoutScheduler.schedule(() -> future.completeExceptionally(new TimeoutException(
+                "Enclave did not reply to flow " + flowID + " within " + mailTimeoutSeconds + " seconds")), mailTimeoutSeconds, TimeUnit.SECONDS);
+        return future.whenComplete((result, error) -> {
+            timeout.cancel(false);
+            futures.remove(flowID, future);
+        });
+    }
+
     // This inner class captures a reference to the service, which will survive checkpointing.
-    private class ReceiveOperation implements FlowExternalOperation<byte[]> {
+    // The flow is suspended without holding a thread from Corda's external operation pool while it waits for the reply.
+    private class ReceiveOperation implements FlowExternalAsyncOperation<byte[]> {
         private final UUID flowID;
 
         public ReceiveOperation(UUID flowID) {
@@ -148,19 +628,48 @@ public class EnclaveHostService extends SingletonSerializeAsToken {
 
         @NotNull
         @Override
-        public byte[] execute(@NotNull String deduplicationId) {
-            // This method will run on a thread pool provided by Corda.
+        public CompletableFuture<byte[]> execute(@NotNull String deduplicationId) {
             // We don't use the dedupe ID at the moment, as a restart would wipe the enclave state anyway.
             CompletableFuture<byte[]> future = mailFutures.get(flowID);
             if (future == null)
                 throw new RuntimeException("Unknown flow ID: " + flowID);
-            try {
-                return future.get();
-            } catch (InterruptedException | ExecutionException e) {
-                throw new RuntimeException(e);
-            } finally {
-                mailFutures.remove(flowID);
-            }
+            return withMailTimeout(flowID, future, mailFutures);
+        }
+    }
+
+    // Like ReceiveOperation, for the enclave lease of a session opened by openAggregationSession.
+    private class LeaseOperation implements FlowExternalAsyncOperation<Boolean> {
+        private final String sessionId;
+
+        public LeaseOperation(String sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        @NotNull
+        @Override
+        public CompletableFuture<Boolean> execute(@NotNull String deduplicationId) {
+            CompletableFuture<Boolean> future = sessionLeases.remove(sessionId);
+            if (future == null)
+                throw new RuntimeException("Unknown session ID: " + sessionId);
+            return future;
+        }
+    }
+
+    // Like ReceiveOperation, for a batch of mails delivered by deliverAndPickUpMails.
+    private class BatchReceiveOperation implements FlowExternalAsyncOperation<List<byte[]>> {
+        private final UUID flowID;
+
+        public BatchReceiveOperation(UUID flowID) {
+            this.flowID = flowID;
+        }
+
+        @NotNull
+        @Override
+        public CompletableFuture<List<byte[]>> execute(@NotNull String deduplicationId) {
+            CompletableFuture<List<byte[]>> future = batchMailFutures.get(flowID);
+            if (future == null)
+                throw new RuntimeException("Unknown flow ID: " + flowID);
+            return withMailTimeout(flowID, future, batchMailFutures);
         }
     }
 }
@@ -0,0 +1,272 @@
+package com.protocol180.aggregator.flow;
+
+import com.r3.conclave.host.EnclaveHost;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A pool of started {@link EnclaveHost} instances of a single enclave class, used by {@link EnclaveHostService}.
+ * Enclave load and attestation take far longer than an aggregation, so the pool keeps a target number of enclaves
+ * started ahead of time and leases them to aggregation sessions. A lease goes to the enclave serving the fewest
+ * sessions; as enclaves partition their state by session, an enclave may be leased to several sessions at once rather
+ * than making a session wait for a new enclave to start. A lease is returned once its session is closed in the
+ * enclave, which resets all session state. Enclaves that fail to close a session are replaced.
+ * State an enclave keeps across sessions, like the rows it retains for providers uploading incrementally, lives in that
+ * enclave only. Sessions building on such state lease with an affinity key, and go to the enclave last leased with the
+ * same key as long as it is in the pool, however busy it is.
+ * Leases of a pool with no enclave started yet wait for the enclaves being started for the pool, without holding the
+ * caller's thread, and share the first one started. Only when no enclave is being started does such a lease start one,
+ * waiting for it to be admitted.
+ * Enclaves are started and closed through an {@link EnclaveLifecycle}, which decides whether another enclave may be
+ * started at all.
+ */
+class EnclavePool {
+
+    private static final Logger log = LoggerFactory.getLogger(EnclavePool.class);
+
+    /**
+     * Starts and closes the enclaves of a pool.
+     */
+    interface EnclaveLifecycle {
+        /**
+         * Starts an enclave of the given class. When no more enclaves may be started, returns null if waitForAdmission
+         * is not set, and otherwise waits for an enclave to be closed elsewhere, failing if none is in time.
+         */
+        EnclaveHost start(String enclaveClassName, boolean waitForAdmission);
+
+        void close(EnclaveHost enclaveHost);
+    }
+
+    private final String enclaveClassName;
+    private final int targetSize;
+    private final EnclaveLifecycle lifecycle;
+    private final ExecutorService warmUpExecutor;
+
+    // Started enclaves of the pool, guarded by the pool's lock
+    private final List<PooledEnclave> enclaves = new ArrayList<>();
+    private int enclavesLoading;
+    // Enclave last leased with each affinity key, guarded by the pool's lock
+    private final Map<String, PooledEnclave> affinities = new HashMap<>();
+    // Leases waiting for the pool's first enclave to start, guarded by the pool's lock
+    private List<PendingLease> pendingLeases = new ArrayList<>();
+
+    EnclavePool(String enclaveClassName, int targetSize, EnclaveLifecycle lifecycle, ExecutorService warmUpExecutor) {
+        this.enclaveClassName = enclaveClassName;
+        this.targetSize = Math.max(1, targetSize);
+        this.lifecycle = lifecycle;
+        this.warmUpExecutor = warmUpExecutor;
+    }
+
+    /**
+     * Starts enclaves in the background until the pool reaches its target size, as far as the lifecycle admits them.
+     */
+    void warmUp() {
+        int enclavesToLoad;
+        synchronized (this) {
+            enclavesToLoad = targetSize - enclaves.size() - enclavesLoading;
+            enclavesLoading += Math.max(0, enclavesToLoad);
+        }
+        for (int i = 0; i < enclavesToLoad; i++) {
+            startEnclave(false);
+        }
+    }
+
+    /**
+     * Starts an enclave in the background, already counted as loading. The started enclave joins the pool and serves
+     * the leases waiting for one. If no enclave could be started and none is loading anymore, waiting leases start one
+     * that waits for admission, or fail if that one couldn't be started either.
+     */
+    private void startEnclave(boolean waitForAdmission) {
+        warmUpExecutor.execute(() -> {
+            EnclaveHost enclaveHost = null;
+            RuntimeException failure = null;
+            try {
+                enclaveHost = lifecycle.start(enclaveClassName, waitForAdmission);
+                if (enclaveHost == null)
+                    log.info("Maximum number of live enclaves reached, pool of " + enclaveClassName + " stays below its target size");
+            } catch (RuntimeException e) {
+                log.error("Unable to start enclave " + enclaveClassName + " for the pool", e);
+                failure = e;
+            } finally {
+                PooledEnclave started = null;
+                List<PendingLease> servedLeases = null;
+                boolean startForLeases = false;
+                synchronized (this) {
+                    enclavesLoading--;
+                    if (enclaveHost != null) {
+                        started = new PooledEnclave(enclaveHost);
+                        enclaves.add(started);
+                        for (PendingLease pendingLease : pendingLeases) {
+                            started.activeSessions++;
+                            if (pendingLease.affinityKey != null)
+                                affinities.put(pendingLease.affinityKey, started);
+                        }
+                    }
+                    if (enclaveHost != null || (enclavesLoading == 0 && waitForAdmission)) {
+                        servedLeases = pendingLeases;
+                        pendingLeases = new ArrayList<>();
+                    } else if (enclavesLoading == 0 && !pendingLeases.isEmpty()) {
+                        enclavesLoading++;
+                        startForLeases = true;
+                    }
+                }
+                if (startForLeases)
+                    startEnclave(true);
+                if (servedLeases != null) {
+                    for (PendingLease pendingLease : servedLeases) {
+                        if (started != null)
+                            pendingLease.future.complete(started);
+                        else
+                            pendingLease.future.completeExceptionally(failure != null ? failure
+                                    : new IllegalStateException("Unable to start enclave " + enclaveClassName));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Leases the enclave last leased with the affinity key if it is still in the pool, and otherwise the started enclave
+     * serving the fewest sessions. Only a cold pool, with no enclave started yet, makes the lease wait for an enclave
+     * to start; the returned future then completes once one is started, or fails if none could be.
+     */
+    CompletableFuture<PooledEnclave> lease(String affinityKey) {
+        PooledEnclave leased = null;
+        CompletableFuture<PooledEnclave> pendingLease = null;
+        boolean startForLease = false;
+        synchronized (this) {
+            PooledEnclave preferred = affinityKey == null ? null : affinities.get(affinityKey);
+            if (preferred != null && enclaves.contains(preferred)) {
+                leased = preferred;
+            } else {
+                for (PooledEnclave enclave : enclaves) {
+                    if (leased == null || enclave.activeSessions < leased.activeSessions)
+                        leased = enclave;
+                }
+            }
+            if (leased != null) {
+                leased.activeSessions++;
+                if (affinityKey != null)
+                    affinities.put(affinityKey, leased);
+            } else {
+                // wait for the enclaves being started, e.g. by the pool's warm-up, and only start one if none is
+                pendingLease = new CompletableFuture<>();
+                pendingLeases.add(new PendingLease(affinityKey, pendingLease));
+                if (enclavesLoading == 0) {
+                    enclavesLoading++;
+                    startForLease = true;
+                }
+            }
+        }
+        if (startForLease)
+            startEnclave(true);
+        warmUp();
+        return leased != null ? CompletableFuture.completedFuture(leased) : pendingLease;
+    }
+
+    /**
+     * Returns a lease. The session must have been closed in the enclave already; if that failed (resetFailure is set)
+     * the enclave's state can't be trusted anymore and the enclave is replaced.
+     */
+    void release(PooledEnclave enclave, RuntimeException resetFailure) {
+        boolean replace = false;
+        boolean close;
+        synchronized (this) {
+            enclave.activeSessions--;
+            if (enclave.activeSessions == 0)
+                enclave.idleSince = System.currentTimeMillis();
+            if (resetFailure != null && !enclave.retired) {
+                // the enclave leaves the pool, but stays up until the other sessions leased to it are done
+                enclave.retired = true;
+                enclaves.remove(enclave);
+                affinities.values().removeIf(affine -> affine == enclave);
+                replace = true;
+            }
+            close = enclave.retired && enclave.activeSessions == 0;
+        }
+        if (replace) {
+            log.warn("Replacing enclave " + enclaveClassName + " after a failed session reset", resetFailure);
+            warmUp();
+        }
+        if (close)
+            lifecycle.close(enclave.enclaveHost);
+    }
+
+    /**
+     * Closes the enclaves above the pool's target size that have not been leased for longer than the idle timeout.
+     */
+    void reapIdle(long now, long idleTimeoutMillis) {
+        List<PooledEnclave> idleEnclaves = new ArrayList<>();
+        synchronized (this) {
+            Iterator<PooledEnclave> iterator = enclaves.iterator();
+            while (iterator.hasNext() && enclaves.size() > targetSize) {
+                PooledEnclave enclave = iterator.next();
+                if (enclave.activeSessions == 0 && now - enclave.idleSince > idleTimeoutMillis) {
+                    iterator.remove();
+                    affinities.values().removeIf(affine -> affine == enclave);
+                    idleEnclaves.add(enclave);
+                }
+            }
+        }
+        for (PooledEnclave enclave : idleEnclaves) {
+            log.info("Closing idle enclave " + enclaveClassName);
+            lifecycle.close(enclave.enclaveHost);
+        }
+    }
+
+    /**
+     * Closes every enclave of the pool, whether leased or not. Used when the node shuts down.
+     */
+    void closeAll() {
+        List<PooledEnclave> allEnclaves;
+        List<PendingLease> abandonedLeases;
+        synchronized (this) {
+            allEnclaves = new ArrayList<>(enclaves);
+            enclaves.clear();
+            affinities.clear();
+            abandonedLeases = pendingLeases;
+            pendingLeases = new ArrayList<>();
+        }
+        for (PendingLease pendingLease : abandonedLeases) {
+            pendingLease.future.completeExceptionally(new IllegalStateException("Pool of enclave " + enclaveClassName + " was closed"));
+        }
+        for (PooledEnclave enclave : allEnclaves) {
+            lifecycle.close(enclave.enclaveHost);
+        }
+    }
+
+    /**
+     * A lease waiting for the pool's first enclave to start.
+     */
+    private static class PendingLease {
+        final String affinityKey;
+        final CompletableFuture<PooledEnclave> future;
+
+        PendingLease(String affinityKey, CompletableFuture<PooledEnclave> future) {
+            this.affinityKey = affinityKey;
+            this.future = future;
+        }
+    }
+
+    /**
+     * A started enclave of the pool together with the number of sessions it is leased to.
+     */
+    static class PooledEnclave {
+        final EnclaveHost enclaveHost;
+        private int activeSessions;
+        private long idleSince = System.currentTimeMillis();
+        private boolean retired;
+
+        PooledEnclave(EnclaveHost enclaveHost) {
+            this.enclaveHost = enclaveHost;
+        }
+    }
+}
@@ -1,22 +1,35 @@
 package com.protocol180.aggregator.flow
 
 import com.protocol180.aggregator.states.CoalitionConfigurationState
+import com.protocol180.aggregator.states.CoalitionDataType
+import com.protocol180.aggregator.states.RoleType
 import net.corda.core.contracts.StateAndRef
+import net.corda.core.contracts.StateRef
 import net.corda.core.contracts.UniqueIdentifier
 import net.corda.core.identity.AbstractParty
+import net.corda.core.identity.Party
 import net.corda.core.node.AppServiceHub
 import net.corda.core.node.services.CordaService
 import net.corda.core.node.services.Vault
 import net.corda.core.node.services.queryBy
+import net.corda.core.node.services.trackBy
 import net.corda.core.node.services.vault.QueryCriteria
 import net.corda.core.serialization.SingletonSerializeAsToken
 
 /**
  * Service for Coalition Configuration State vault queries used in the flows.
+ * Aggregation flows look the configuration up through [findCoalitionConfigurationForParticipants], which is served from
+ * an in-memory snapshot of the unconsumed configuration states. The snapshot is kept live by tracking the vault, which
+ * starts with the first lookup, so flows skip the vault query and the deserialisation of every data type schema.
  */
 @CordaService
 class CoalitionConfigurationStateService(private val hub: AppServiceHub) : SingletonSerializeAsToken() {
 
+    // Unconsumed configuration states as tracked from the vault, guarded by trackedStates itself
+    private val trackedStates = LinkedHashMap<StateRef, StateAndRef<CoalitionConfigurationState>>()
+    @Volatile
+    private var configurations: List<CoalitionConfiguration>? = null
+
     /**
      * Returns the coalition configuration state for a specific linear id
      */
@@ -28,7 +41,8 @@ class CoalitionConfigurationStateService(private val hub: AppServiceHub) : Singl
                 relevancyStatus = Vault.RelevancyStatus.ALL)).states.singleOrNull()
 
     /**
-     * Returns the coalition configuration state for a list of participants
+     * Returns the coalition configuration state for a list of participants, straight from the vault. Used by flows that
+     * consume the configuration state and must see the latest one committed.
      */
     fun findCoalitionConfigurationStateForParticipants(participants: List<AbstractParty>) : StateAndRef<CoalitionConfigurationState>? =
         hub.vaultService.queryBy<CoalitionConfigurationState>(
@@ -36,4 +50,62 @@ class CoalitionConfigurationStateService(private val hub: AppServiceHub) : Singl
                 participants = participants,
                 status = Vault.StateStatus.UNCONSUMED,
                 relevancyStatus = Vault.RelevancyStatus.ALL)).states.singleOrNull()
+
+    /**
+     * Returns the indexed coalition configuration for a list of participants from the in-memory snapshot, or null if
+     * there is no (single) configuration any of the participants takes part in.
+     */
+    fun findCoalitionConfigurationForParticipants(participants: List<AbstractParty>) : CoalitionConfiguration? =
+        (configurations ?: startTracking()).filter { configuration ->
+            participants.any { it in configuration.participants }
+        }.singleOrNull()
+
+    private fun startTracking(): List<CoalitionConfiguration> {
+        synchronized(trackedStates) {
+            configurations?.let { return it }
+            val feed = hub.vaultService.trackBy<CoalitionConfigurationState>(
+                QueryCriteria.VaultQueryCriteria(
+                    status = Vault.StateStatus.UNCONSUMED,
+                    relevancyStatus = Vault.RelevancyStatus.ALL))
+            feed.snapshot.states.forEach { trackedStates[it.ref] = it }
+            val snapshot = trackedStates.values.map { CoalitionConfiguration(it) }
+            configurations = snapshot
+            feed.updates.subscribe { update -> applyUpdate(update) }
+            return snapshot
+        }
+    }
+
+    private fun applyUpdate(update: Vault.Update<CoalitionConfigurationState>) {
+        synchronized(trackedStates) {
+            update.consumed.forEach { trackedStates.remove(it.ref) }
+            update.produced.forEach { trackedStates[it.ref] = it }
+            configurations = trackedStates.values.map { CoalitionConfiguration(it) }
+        }
+    }
+}
+
+/**
+ * An unconsumed [CoalitionConfigurationState] indexed for the lookups made by the aggregation flows: data types by
+ * code and parties by role, each answered without scanning the configuration.
+ */
+class CoalitionConfiguration(val stateAndRef: StateAndRef<CoalitionConfigurationState>) {
+
+    val state: CoalitionConfigurationState get() = stateAndRef.state.data
+
+    val participants: Set<AbstractParty> = state.participants.toSet()
+
+    private val dataTypesByCode: Map<String, CoalitionDataType> = state.supportedCoalitionDataTypes.associateBy { it.dataTypeCode }
+
+    private val rolesByParty: Map<Party, Set<RoleType>> = state.coalitionPartyToRole.entries
+            .flatMap { (role, parties) -> parties.map { it to role } }
+            .groupBy({ it.first }, { it.second })
+            .mapValues { it.value.toSet() }
+
+    fun isSupportedDataType(dataTypeCode: String): Boolean = dataTypeCode in dataTypesByCode
+
+    fun getDataTypeForCode(dataTypeCode: String): CoalitionDataType? = dataTypesByCode[dataTypeCode]
+
+    fun getPartiesForRole(role: RoleType): Set<Party>? = state.coalitionPartyToRole[role]
+
+    fun getRolesForParty(party: Party): Set<RoleType> = rolesByParty[party] ?: emptySet()
 }
@@ -1,20 +1,25 @@
 package com.protocol180.aggregator.flow
 
 import co.paralleluniverse.fibers.Suspendable
+import com.protocol180.aggregator.commons.MailEnvelope
+import com.protocol180.aggregator.commons.MailType
 import com.protocol180.aggregator.contracts.DataOutputContract
+import com.protocol180.aggregator.contracts.RewardsContract
 import com.protocol180.aggregator.states.DataOutputState
+import com.protocol180.aggregator.states.RewardsState
 import com.protocol180.aggregator.states.RoleType
 import com.r3.conclave.common.EnclaveInstanceInfo
 import com.r3.conclave.mail.Curve25519PrivateKey
 import com.r3.conclave.mail.PostOffice
 import net.corda.core.contracts.CommandData
+import net.corda.core.crypto.SecureHash
 import net.corda.core.flows.*
 import net.corda.core.transactions.SignedTransaction
 import net.corda.core.transactions.TransactionBuilder
 import net.corda.core.utilities.ProgressTracker
 import net.corda.core.utilities.loggerFor
 import net.corda.core.utilities.unwrap
-import java.security.PublicKey
+import java.time.Duration
 import java.time.Instant
 
 /**
@@ -47,17 +52,19 @@ class ConsumerAggregationFlow(private val dataType: String, private val descript
         val notary = serviceHub.networkMapCache.notaryIdentities.single()
         val consumer = ourIdentity
 
-        val coalitionConfiguration = coalitionConfigurationStateService.findCoalitionConfigurationStateForParticipants(listOf(ourIdentity))
+        val coalitionConfiguration = coalitionConfigurationStateService.findCoalitionConfigurationForParticipants(listOf(ourIdentity))
 
         if(coalitionConfiguration == null){
             throw ConsumerAggregationFlowException("Coalition Configuration is not known to node, host needs to update configuration and include node in participants")
-        } else if (!coalitionConfiguration.state.data.isSupportedDataType(dataType)){
+        } else if (!coalitionConfiguration.isSupportedDataType(dataType)){
             throw ConsumerAggregationFlowException("Unsupported data type requested for aggregation, please use a supported data type configured in the coalition configuration")
         }
 
-        enclaveClientService.initializeSchema(String(coalitionConfiguration.state.data.getDataTypeForCode(dataType)!!.schemaFile))
+        //parse & register the data type's schemas up front, they are looked up from the registry where used
+        val schemaFile = coalitionConfiguration.getDataTypeForCode(dataType)!!.schemaFile
+        enclaveClientService.schemasFor(dataType, schemaFile)
 
-        val host = coalitionConfiguration.state.data.getPartiesForRole(RoleType.COALITION_HOST)!!.single()
+        val host = coalitionConfiguration.getPartiesForRole(RoleType.COALITION_HOST)!!.single()
         log.info("Found host in configuration state: $host")
         val hostSession = initiateFlow(host)
         //receive attestation from host
@@ -69,7 +76,7 @@ class ConsumerAggregationFlow(private val dataType: String, private val descript
 
         //send data output schema to be aggregated to host
         val encryptedAggregationDataRecordBytes = hostSession.sendAndReceive<ByteArray>(postOffice.encryptMail(enclaveClientService
-                .aggregationOutputSchema.toString().toByteArray())).unwrap { it }
+                .schemasFor(dataType, schemaFile).aggregationOutputSchema.toString().toByteArray(), MailEnvelope(MailType.TYPE_CONSUMER).serialize())).unwrap { it }
         val decryptedAggregationDataRecordBytes = postOffice.decryptMail(encryptedAggregationDataRecordBytes).bodyAsBytes
 
         //Store aggregation output data received from enclave into consumer's local db
@@ -99,6 +106,8 @@ class ConsumerAggregationFlow(private val dataType: String, private val descript
  * The host sends providers the enclave attestation and the requested data type. Providers then send back encrypted data
  * to the host. Host sends this data to the enclave and requests the output. The encrypted Data Output from the enclave is sent back
  * to the consumer who creates a [DataOutputState] transaction using this data.
+ * When a coalescing window is configured, consumers requesting the same data type within the window share a single
+ * aggregation, led by the first of them, see [ConsumerRequestCoalescingService].
  * The signing is handled by the [SignTransactionFlow].
  */
 @InitiatedBy(ConsumerAggregationFlow::class)
@@ -107,6 +116,49 @@ class ConsumerAggregationFlowResponder(private val flowSession: FlowSession) : F
 
     companion object{
         private val log = loggerFor<ConsumerAggregationFlowResponder>()
+
+        /**
+         * CorDapp config key of the host switching to batched rewards issuance. When set, the host issues the
+         * [RewardsState]s of all providers of an aggregation in one transaction instead of each provider issuing its
+         * own. Every provider then receives the transaction holding the states of all providers, so these states only
+         * hold the hash of each provider's rewards, which providers keep off-ledger.
+         */
+        const val BATCHED_REWARDS_ISSUANCE_CONFIG_KEY = "batchedRewardsIssuance"
+
+        /**
+         * CorDapp config key of the size in bytes of the chunks providers upload their data in. Each chunk is forwarded
+         * to the enclave as a mail of its own and decoded there on arrival, bounding the memory a provider's data takes
+         * on the host and in the enclave, as well as the size of flow messages. Unset or 0 uploads each provider's data
+         * as a single mail.
+         */
+        const val PROVIDER_DATA_CHUNK_SIZE_CONFIG_KEY = "providerDataChunkSize"
+
+        /**
+         * CorDapp config key of the window in seconds during which consumer requests for a data type are coalesced into
+         * the aggregation started by the first of them. The providers' data is then collected and aggregated once for
+         * all of these consumers, at the cost of the first consumer waiting for the window. Unset or 0 runs an
+         * aggregation per consumer request.
+         */
+        const val CONSUMER_COALESCING_WINDOW_SECONDS_CONFIG_KEY = "consumerCoalescingWindowSeconds"
+
+        /**
+         * CorDapp config key of the host switching on the enclave's result cache. When set, providers first report the
+         * digest of their input, bound to their identity token, and only upload their data if the enclave holds no
+         * outputs of an earlier aggregation over the same inputs. The enclave checks the uploaded data against the
+         * digests before caching its outputs. Cached outputs stay in the enclave's memory, so they are only found by
+         * aggregations running on the enclave instance that computed them, and the hit rate drops as the pool grows.
+         */
+        const val RESULT_CACHE_CONFIG_KEY = "aggregationResultCache"
+
+        /**
+         * CorDapp config key of the host switching providers to incremental uploads. When set, the enclave retains the
+         * rows of every provider across aggregations, and providers only upload the rows appended to their data since
+         * their last aggregation, as tracked by their watermark. The enclave retains one input per provider and data
+         * type of the coalition, and the aggregations of a data type run on the pooled enclave holding its providers'
+         * rows. Providers upload all their rows again whenever the enclave no longer holds them, e.g. after the enclave
+         * was restarted or replaced in its pool.
+         */
+        const val INCREMENTAL_AGGREGATION_CONFIG_KEY = "incrementalAggregation"
     }
 
     @Suspendable
@@ -119,57 +171,147 @@ class ConsumerAggregationFlowResponder(private val flowSession: FlowSession) : F
 
         //verify that host has agreed for aggregation of given data type
         val coalitionConfigurationStateService = serviceHub.cordaService(CoalitionConfigurationStateService::class.java)
-        val coalitionConfiguration = coalitionConfigurationStateService.findCoalitionConfigurationStateForParticipants(listOf(ourIdentity))
+        val coalitionConfiguration = coalitionConfigurationStateService.findCoalitionConfigurationForParticipants(listOf(ourIdentity))
 
         if (coalitionConfiguration == null) {
             throw ConsumerAggregationFlowException("Coalition Configuration is not known to node, host needs to update configuration and include node in participants")
-        } else if (!coalitionConfiguration.state.data.isSupportedDataType(dataType)) {
+        } else if (!coalitionConfiguration.isSupportedDataType(dataType)) {
             throw ConsumerAggregationFlowException("Unsupported data type requested for aggregation, please use a supported data type configured in the coalition configuration")
+        } else if (RoleType.DATA_CONSUMER !in coalitionConfiguration.getRolesForParty(flowSession.counterparty)) {
+            throw ConsumerAggregationFlowException("Aggregation requested by a party that is not a data consumer of the coalition")
         }
 
         // initiate & configure enclave service to be used for aggregation
         val enclaveService = this.serviceHub.cordaService(EnclaveHostService::class.java)
 
-        val flowId= this.runId.uuid.toString()
-        val enclaveName= coalitionConfiguration.state.data.getDataTypeForCode(dataType)!!.enclaveName
-        // Load enclave specific to current flow only
-        enclaveService.loadEnclaveForAggregation(flowId, enclaveName)
-        val attestationBytes = enclaveService.getAttestationBytes(flowId)
-        enclaveService.initializeAvroSchema(flowId,
-                                            coalitionConfiguration.state.data.getDataTypeForCode(dataType)!!.schemaFile)
+        val sessionId = this.runId.uuid.toString()
+        val config = serviceHub.getAppContext().config
+        val coalescingWindowSeconds = if (config.exists(CONSUMER_COALESCING_WINDOW_SECONDS_CONFIG_KEY)) config.getLong(CONSUMER_COALESCING_WINDOW_SECONDS_CONFIG_KEY) else 0L
+        val coalescingService = serviceHub.cordaService(ConsumerRequestCoalescingService::class.java)
+        //everything that may fail is looked up before leading an aggregation, which must then always be ended
+        val enclaveName= coalitionConfiguration.getDataTypeForCode(dataType)!!.enclaveName
+        val providers = coalitionConfiguration.getPartiesForRole(RoleType.DATA_PROVIDER)
+        val batchedRewardsIssuance = config.exists(BATCHED_REWARDS_ISSUANCE_CONFIG_KEY) && config.getBoolean(BATCHED_REWARDS_ISSUANCE_CONFIG_KEY)
+        val providerDataChunkSize = if (config.exists(PROVIDER_DATA_CHUNK_SIZE_CONFIG_KEY)) config.getInt(PROVIDER_DATA_CHUNK_SIZE_CONFIG_KEY) else 0
+        val resultCache = config.exists(RESULT_CACHE_CONFIG_KEY) && config.getBoolean(RESULT_CACHE_CONFIG_KEY)
+        val incrementalAggregation = config.exists(INCREMENTAL_AGGREGATION_CONFIG_KEY) && config.getBoolean(INCREMENTAL_AGGREGATION_CONFIG_KEY)
+        val providerSessions = providers!!.map { initiateFlow(it) }
 
-        // Initiate Provider flows and acquire encrypted payload according to given schema
-        val providers = coalitionConfiguration.state.data.coalitionPartyToRole[RoleType.DATA_PROVIDER]
-        val clientKeyMapWithRandomKeyGenerated = mutableMapOf<PublicKey, Pair<String, ByteArray>>()
+        if (coalescingWindowSeconds > 0) {
+            val aggregationId = coalescingService.join(dataType, sessionId)
+            if (aggregationId != sessionId) {
+                //another consumer's aggregation of the data type is starting, it is shared with this consumer
+                try {
+                    exchangeWithConsumer(enclaveService, aggregationId, this.await(coalescingService.awaitAggregationReady(aggregationId)))
+                } finally {
+                    coalescingService.consumerServed(aggregationId)
+                }
+                receiveDataOutputTransaction()
+                return
+            }
+        }
 
-        val providerSessions = providers!!.map { initiateFlow(it) }
-        providerSessions.forEach { providerSession ->
-            //receive provider data pair - provider public key -> encrypted input data payload
-            val providerDataPair = providerSession.sendAndReceive<Pair<String, ByteArray>>(Pair(attestationBytes, dataType)).unwrap { it }
-            log.info("Provider Data Pair:$providerDataPair")
-            clientKeyMapWithRandomKeyGenerated[providerSession.counterparty.owningKey] = providerDataPair
-            val encryptedPayloadFromProvider = providerDataPair.second
-            //send data to enclave
-            val encryptedResponseByteFromEnclave = this.await(enclaveService.deliverAndPickUpMail(this, encryptedPayloadFromProvider))
-            log.info(String(encryptedResponseByteFromEnclave))
+        // The session is closed however the aggregation ends, so the enclave lease is always returned and consumers
+        // that joined the aggregation are never left waiting
+        val attestationBytes = try {
+            if (coalescingWindowSeconds > 0) {
+                //lead the aggregation, gathering the consumers of the data type for the window
+                sleep(Duration.ofSeconds(coalescingWindowSeconds))
+                coalescingService.closeToNewConsumers(dataType, sessionId)
+            }
+            // Open a session for the current flow on the (shared) enclave for the data type, incremental aggregations
+            // on the enclave holding the rows retained for the data type's providers
+            this.await(enclaveService.openAggregationSession(sessionId, enclaveName, if (incrementalAggregation) dataType else null))
+            val attestationBytes = enclaveService.getAttestationBytes(sessionId)
+            enclaveService.initializeAvroSchema(sessionId,
+                                                coalitionConfiguration.getDataTypeForCode(dataType)!!.schemaFile,
+                                                coalitionConfiguration.getDataTypeForCode(dataType)!!.compressionCodec)
+            if (incrementalAggregation)
+                enclaveService.setRetainedInputCount(sessionId, providers.size * coalitionConfiguration.state.supportedCoalitionDataTypes.size)
+
+            // Initiate Provider flows and acquire encrypted payload according to given schema
+            var uploadingSessions = providerSessions
+            //request data from all providers up front, so they read, serialise and encrypt their data in parallel
+            sendAll(ProviderDataRequest(attestationBytes, dataType, providerDataChunkSize, resultCache, incrementalAggregation),
+                    providerSessions.toSet())
+            if (resultCache) {
+                //providers report their input digests first, their data is only needed if no outputs over it are cached
+                enclaveService.markAggregationSessionActive(sessionId)
+                val providerDigests = receiveAll(ByteArray::class.java, providerSessions).map { it.unwrap { data -> data } }
+                this.await(enclaveService.deliverAndPickUpMails(this, sessionId, providerDigests))
+                val cachedOutputLoaded = enclaveService.loadCachedOutput(sessionId)
+                if (cachedOutputLoaded) {
+                    log.info("Serving aggregation of $dataType from the enclave's result cache")
+                    uploadingSessions = emptyList()
+                }
+                sendAll(!cachedOutputLoaded, providerSessions.toSet())
+            }
+            if (incrementalAggregation && uploadingSessions.isNotEmpty()) {
+                //providers claim the rows the enclave retained for them, the enclave's replies tell them where to start
+                enclaveService.markAggregationSessionActive(sessionId)
+                val baselineClaims = receiveAll(ByteArray::class.java, uploadingSessions).map { it.unwrap { data -> data } }
+                val baselineReplies = this.await(enclaveService.deliverAndPickUpMails(this, sessionId, baselineClaims))
+                sendAllMap(uploadingSessions.zip(baselineReplies).toMap())
+            }
+            //each round forwards the next chunk of every provider still uploading, a single round unless uploads are chunked
+            while (uploadingSessions.isNotEmpty()) {
+                val (lastChunks, chunkDelivery) = deliverProviderData(enclaveService, sessionId, uploadingSessions)
+                val providerCounts = this.await(chunkDelivery)
+                providerCounts.filterIndexed { index, _ -> lastChunks[index] }.forEach { log.info(String(it)) }
+                //acknowledge the chunks of providers with more to send, which hold their next chunk until then
+                val acknowledgements = uploadingSessions.indices.filter { !lastChunks[it] }
+                        .associate { uploadingSessions[it] to providerCounts[it] }
+                if (acknowledgements.isNotEmpty())
+                    sendAllMap(acknowledgements, true)
+                uploadingSessions = uploadingSessions.filterIndexed { index, _ -> !lastChunks[index] }
+            }
+
+            //serve the consumers that joined the aggregation along with this flow's own consumer
+            coalescingService.aggregationReady(sessionId, attestationBytes)
+            exchangeWithConsumer(enclaveService, sessionId, attestationBytes)
+            if (coalescingWindowSeconds > 0) {
+                enclaveService.markAggregationSessionActive(sessionId)
+                this.await(coalescingService.awaitConsumersServed(sessionId))
+            }
+
+            // Gather reward requests from all providers at once, calculate their reward points as a batch & submit
+            // the reward responses back to all providers
+            sendAll(RewardsRequest(dataType, batchedRewardsIssuance), providerSessions.toSet())
+            enclaveService.markAggregationSessionActive(sessionId)
+            val providerEncryptedBytesForRewards = receiveAll(ByteArray::class.java, providerSessions).map { it.unwrap { data -> data } }
+            val encryptedRewardResponsesFromEnclave = this.await(enclaveService.deliverAndPickUpMails(this, sessionId, providerEncryptedBytesForRewards))
+            sendAllMap(providerSessions.zip(encryptedRewardResponsesFromEnclave).toMap())
+            attestationBytes
+        } finally {
+            enclaveService.closeAggregationSession(sessionId)
+            coalescingService.endAggregation(dataType, sessionId)
         }
 
+        receiveDataOutputTransaction()
+
+        if (batchedRewardsIssuance)
+            issueRewardsStates(providerSessions, attestationBytes)
+    }
+
+    /**
+     * Sends the attestation to the consumer, and delivers the consumer's encrypted request to the enclave session,
+     * sending the encrypted data output back to the consumer.
+     */
+    @Suspendable
+    private fun exchangeWithConsumer(enclaveService: EnclaveHostService, sessionId: String, attestationBytes: ByteArray) {
         //send attestation to consumer
+        enclaveService.markAggregationSessionActive(sessionId)
         val encryptedBytesFromConsumer = flowSession.sendAndReceive<ByteArray>(attestationBytes).unwrap { it }
         //compute data output for consumer using enclave and share with consumer
-        val encryptedConsumerResponseByteFromEnclave = this.await(enclaveService.deliverAndPickUpMail(this, encryptedBytesFromConsumer))
+        val encryptedConsumerResponseByteFromEnclave = this.await(enclaveService.deliverAndPickUpMail(this, sessionId, encryptedBytesFromConsumer))
         flowSession.send(encryptedConsumerResponseByteFromEnclave)
+    }
 
-        // Calculate reward points for each provider & submit reward response back to provider
-        providerSessions.forEach { providerSession ->
-            val providerEncryptedBytesForRewards = providerSession.sendAndReceive<ByteArray>(dataType).unwrap { it }
-            val encryptedRewardResponseByteFromEnclave = this.await(enclaveService.deliverAndPickUpMail(this, providerEncryptedBytesForRewards))
-            log.info(String(encryptedRewardResponseByteFromEnclave))
-            providerSession.send(encryptedRewardResponseByteFromEnclave)
-        }
-
-        enclaveService.removeEnclave(flowId)
-
+    /**
+     * Signs and records the [DataOutputState] transaction of the consumer.
+     */
+    @Suspendable
+    private fun receiveDataOutputTransaction() {
         //finalise data output state creation
         val signedTransactionFlow = object : SignTransactionFlow(flowSession) {
             override fun checkTransaction(stx: SignedTransaction) {
@@ -185,6 +327,50 @@ class ConsumerAggregationFlowResponder(private val flowSession: FlowSession) : F
         val txWeJustSignedId = subFlow(signedTransactionFlow)
         subFlow(ReceiveFinalityFlow(otherSideSession = flowSession, expectedTxId = txWeJustSignedId.id))
     }
+
+    /**
+     * Receives the next encrypted data payload, or chunk of it, of the given providers and hands them to the enclave.
+     * Each payload is handed over as soon as it is received, so the enclave decodes a provider's payload while the next
+     * provider's is being received. Returns whether each payload was the provider's last, along with the operation
+     * awaiting the enclave's replies.
+     * The payloads only live in this function's frame and receiving them skips the checkpoint, so no checkpoint of the
+     * flow holds provider data however large it is.
+     */
+    @Suspendable
+    private fun deliverProviderData(enclaveService: EnclaveHostService, sessionId: String,
+                                    providerSessions: List<FlowSession>): Pair<List<Boolean>, FlowExternalAsyncOperation<List<ByteArray>>> {
+        val lastChunks = providerSessions.map { providerSession ->
+            enclaveService.markAggregationSessionActive(sessionId)
+            val providerDataChunk = receiveAll(ProviderDataChunk::class.java, listOf(providerSession), true).single().unwrap { it }
+            enclaveService.deliverBatchMail(this, sessionId, providerDataChunk.encryptedData)
+            providerDataChunk.lastChunk
+        }
+        return Pair(lastChunks, enclaveService.pickUpBatchMails(this, sessionId))
+    }
+
+    /**
+     * Issues the [RewardsState]s of all providers of the aggregation in a single transaction, so it is notarised once
+     * per aggregation rather than once per provider. Each provider sends back its flow topic and the hash of the rewards
+     * it decrypted, and checks its own state before signing. The rewards themselves never leave the provider.
+     */
+    @Suspendable
+    private fun issueRewardsStates(providerSessions: List<FlowSession>, attestationBytes: ByteArray) {
+        val notary = serviceHub.networkMapCache.notaryIdentities.single()
+        @Suppress("UNCHECKED_CAST")
+        val providerRewards = receiveAll(Pair::class.java, providerSessions).map { it.unwrap { data -> data as Pair<String, SecureHash> } }
+        val dateCreated = Instant.now()
+
+        val builder = TransactionBuilder(notary)
+        providerSessions.zip(providerRewards).forEach { (providerSession, flowTopicAndRewardsHash) ->
+            builder.addOutputState(RewardsState(providerSession.counterparty, ourIdentity, ByteArray(0), dateCreated,
+                    attestationBytes, flowTopicAndRewardsHash.first, flowTopicAndRewardsHash.second), RewardsContract.ID)
+        }
+        builder.addCommand(RewardsContract.Commands.Create(), listOf(ourIdentity.owningKey) + providerSessions.map { it.counterparty.owningKey })
+        builder.verify(serviceHub)
+        val ptx = serviceHub.signInitialTransaction(builder)
+        val fullySignedTransaction = subFlow(CollectSignaturesFlow(ptx, providerSessions))
+        subFlow(FinalityFlow(fullySignedTransaction, providerSessions))
+    }
 }
 
 /**
@@ -26,6 +26,6 @@ class ConsumerDataOutputRetrievalFlow(private val flowId: String) : FlowLogic<St
         val enclaveClientService = serviceHub.cordaService(EnclaveClientService::class.java)
         val consumer = ourIdentity
 
-        return enclaveClientService.readJsonFromOutputBytesAndSchema(consumerDbStoreService.retrieveConsumerDataOutputWithFlowId(flowId)!!, "aggregate").toString()
+        return enclaveClientService.readJsonFromOutputBytes(consumerDbStoreService.retrieveConsumerDataOutputWithFlowId(flowId)!!).toString()
     }
 }
\ No newline at end of file
@@ -0,0 +1,180 @@
+package com.protocol180.aggregator.flow
+
+import net.corda.core.flows.FlowExternalAsyncOperation
+import net.corda.core.node.AppServiceHub
+import net.corda.core.node.services.CordaService
+import net.corda.core.serialization.SingletonSerializeAsToken
+import net.corda.core.utilities.loggerFor
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Service used by the host to coalesce concurrent consumer requests for a data type into a single aggregation.
+ * The first [ConsumerAggregationFlowResponder] requesting a data type leads an aggregation, which accepts further
+ * consumers of the data type for a configurable window. Consumers joining within the window are served from the
+ * leader's enclave session once it gathered the provider data, so the providers' data is collected and aggregated once
+ * for all of them, while the output is still encrypted separately for each consumer.
+ * Aggregations are identified by the enclave session id of their leader. The operations handed out only refer to that
+ * id, so flows can checkpoint while waiting on them.
+ * The leader waits at most [CONSUMERS_SERVED_TIMEOUT_SECONDS_CONFIG_KEY] seconds (300 by default) for the consumers
+ * that joined it to be served, then carries on with the providers' rewards and ends the aggregation, failing the
+ * consumers still being served. Consumers that joined wait at most [AGGREGATION_READY_TIMEOUT_SECONDS_CONFIG_KEY]
+ * seconds (600 by default) for the aggregation to be ready, then fail.
+ */
+@CordaService
+class ConsumerRequestCoalescingService(private val hub: AppServiceHub) : SingletonSerializeAsToken() {
+
+    companion object {
+        private val log = loggerFor<ConsumerRequestCoalescingService>()
+
+        /**
+         * CorDapp config key of the time in seconds the leader of an aggregation waits for the consumers that joined it
+         * to be served, e.g. for consumers slow to send their request.
+         */
+        const val CONSUMERS_SERVED_TIMEOUT_SECONDS_CONFIG_KEY = "coalescedConsumersTimeoutSeconds"
+
+        /**
+         * CorDapp config key of the time in seconds consumers that joined an aggregation wait for it to be ready, e.g.
+         * for a leader slow to gather the providers' data.
+         */
+        const val AGGREGATION_READY_TIMEOUT_SECONDS_CONFIG_KEY = "coalescedAggregationReadyTimeoutSeconds"
+    }
+
+    private val consumersServedTimeoutSeconds: Long
+    private val aggregationReadyTimeoutSeconds: Long
+
+    // Releases leaders whose consumers aren't served in time, and consumers whose aggregation isn't ready in time
+    private val timeoutScheduler = Executors.newSingleThreadScheduledExecutor { runnable ->
+        val thread = Thread(runnable, "consumer-coalescing-timeout")
+        thread.isDaemon = true
+        thread
+    }
+
+    init {
+        val config = hub.getAppContext().config
+        consumersServedTimeoutSeconds = if (config.exists(CONSUMERS_SERVED_TIMEOUT_SECONDS_CONFIG_KEY))
+            config.getLong(CONSUMERS_SERVED_TIMEOUT_SECONDS_CONFIG_KEY) else 300L
+        aggregationReadyTimeoutSeconds = if (config.exists(AGGREGATION_READY_TIMEOUT_SECONDS_CONFIG_KEY))
+            config.getLong(AGGREGATION_READY_TIMEOUT_SECONDS_CONFIG_KEY) else 600L
+        hub.registerUnloadHandler { timeoutScheduler.shutdownNow() }
+    }
+
+    private class SharedAggregation(val aggregationId: String) {
+        //completed with the enclave attestation once the provider data is in the enclave session
+        val ready = CompletableFuture<ByteArray>()
+        //completed once closed to new consumers and every joined consumer was served
+        val consumersServed = CompletableFuture<Unit>()
+        //guarded by the open aggregations lock
+        var pendingConsumers = 0
+        var closed = false
+    }
+
+    // Aggregations still accepting consumers, by data type, guarded by openAggregations itself
+    private val openAggregations = HashMap<String, SharedAggregation>()
+    private val aggregations = ConcurrentHashMap<String, SharedAggregation>()
+
+    /**
+     * Joins the aggregation of the data type that is still accepting consumers, or starts a new one with the given
+     * session id. Returns the id of the aggregation joined, which is the given session id when the caller leads it.
+     */
+    fun join(dataType: String, sessionId: String): String {
+        synchronized(openAggregations) {
+            val aggregation = openAggregations[dataType]
+            if (aggregation != null) {
+                aggregation.pendingConsumers++
+                return aggregation.aggregationId
+            }
+            val newAggregation = SharedAggregation(sessionId)
+            openAggregations[dataType] = newAggregation
+            aggregations[sessionId] = newAggregation
+            return sessionId
+        }
+    }
+
+    /**
+     * Stops the aggregation from accepting consumers, later requests for the data type start a new aggregation.
+     */
+    fun closeToNewConsumers(dataType: String, aggregationId: String) {
+        synchronized(openAggregations) {
+            if (openAggregations[dataType]?.aggregationId == aggregationId)
+                openAggregations.remove(dataType)
+            val aggregation = aggregations[aggregationId] ?: return
+            aggregation.closed = true
+            if (aggregation.pendingConsumers == 0)
+                aggregation.consumersServed.complete(Unit)
+        }
+    }
+
+    /**
+     * Signals the consumers of the aggregation that its enclave session holds the provider data.
+     */
+    fun aggregationReady(aggregationId: String, attestationBytes: ByteArray) {
+        aggregations[aggregationId]?.ready?.complete(attestationBytes)
+    }
+
+    /**
+     * Ends the aggregation, failing the consumers still waiting for it to be ready if it never was (e.g. because
+     * gathering the provider data failed), and releasing any wait for its consumers to be served.
+     */
+    fun endAggregation(dataType: String, aggregationId: String) {
+        closeToNewConsumers(dataType, aggregationId)
+        val aggregation = aggregations.remove(aggregationId) ?: return
+        aggregation.ready.completeExceptionally(ConsumerAggregationFlowException("Aggregation ended before serving consumer"))
+        aggregation.consumersServed.complete(Unit)
+    }
+
+    /**
+     * Signals that a joined consumer has been served, successfully or not.
+     */
+    fun consumerServed(aggregationId: String) {
+        val aggregation = aggregations[aggregationId] ?: return
+        synchronized(openAggregations) {
+            aggregation.pendingConsumers--
+            if (aggregation.closed && aggregation.pendingConsumers == 0)
+                aggregation.consumersServed.complete(Unit)
+        }
+    }
+
+    /**
+     * Returns an operation completing with the enclave attestation once the aggregation is ready to serve consumers,
+     * or failing once the aggregation ready timeout elapsed.
+     */
+    fun awaitAggregationReady(aggregationId: String): FlowExternalAsyncOperation<ByteArray> = ReadyOperation(aggregationId)
+
+    /**
+     * Returns an operation completing once every consumer that joined the aggregation has been served, or once the
+     * consumers served timeout elapsed. Must only be called after the aggregation was closed to new consumers.
+     */
+    fun awaitConsumersServed(aggregationId: String): FlowExternalAsyncOperation<Unit> = ConsumersServedOperation(aggregationId)
+
+    private fun getAggregation(aggregationId: String): SharedAggregation =
+            aggregations[aggregationId] ?: throw ConsumerAggregationFlowException("Unknown aggregation $aggregationId")
+
+    private inner class ReadyOperation(private val aggregationId: String) : FlowExternalAsyncOperation<ByteArray> {
+        override fun execute(deduplicationId: String): CompletableFuture<ByteArray> {
+            //the shared future is left alone on timeout, other consumers of the aggregation may still be served
+            val ready = CompletableFuture<ByteArray>()
+            getAggregation(aggregationId).ready.whenComplete { attestationBytes, error ->
+                if (error != null) ready.completeExceptionally(error) else ready.complete(attestationBytes)
+            }
+            val timeout = timeoutScheduler.schedule({
+                ready.completeExceptionally(ConsumerAggregationFlowException(
+                        "Aggregation $aggregationId not ready within $aggregationReadyTimeoutSeconds seconds"))
+            }, aggregationReadyTimeoutSeconds, TimeUnit.SECONDS)
+            return ready.whenComplete { _, _ -> timeout.cancel(false) }
+        }
+    }
+
+    private inner class ConsumersServedOperation(private val aggregationId: String) : FlowExternalAsyncOperation<Unit> {
+        override fun execute(deduplicationId: String): CompletableFuture<Unit> {
+            val consumersServed = getAggregation(aggregationId).consumersServed
+            val timeout = timeoutScheduler.schedule({
+                if (consumersServed.complete(Unit))
+                    log.warn("Consumers of aggregation $aggregationId not served within $consumersServedTimeoutSeconds seconds")
+            }, consumersServedTimeoutSeconds, TimeUnit.SECONDS)
+            return consumersServed.whenComplete { _, _ -> timeout.cancel(false) }
+        }
+    }
+}
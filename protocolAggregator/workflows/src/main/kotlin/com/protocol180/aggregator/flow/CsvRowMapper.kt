@@ -0,0 +1,84 @@
+package com.protocol180.aggregator.flow
+
+import org.apache.avro.Schema
+import org.apache.avro.generic.GenericData
+import org.apache.avro.generic.GenericRecord
+import java.nio.ByteBuffer
+
+/**
+ * Maps the lines of a provider CSV data file onto Avro records of the 'aggregateInput' schema. The mapper is compiled
+ * once for a header line and schema: every column gets the position of its schema field and a converter for the
+ * field's type, so mapping a line only splits it and converts each cell. Nullable unions (e.g. ["null", "int"]) are
+ * converted to their non-null branch, empty cells becoming null. Header names are trimmed, and lines must have exactly
+ * as many cells as the header.
+ * A single record is reused for all lines, it must be consumed (e.g. appended to a DataFileWriter) before the next
+ * line is mapped.
+ */
+class CsvRowMapper(headerLine: String, schema: Schema) {
+
+    private val fieldPositions: IntArray
+    private val converters: Array<(String) -> Any?>
+    private val cells: Array<String?>
+    private val record: GenericRecord = GenericData.Record(schema)
+
+    init {
+        val headers = headerLine.split(",").map { it.trim() }
+        fieldPositions = IntArray(headers.size) { index ->
+            val field = schema.getField(headers[index])
+                    ?: throw IllegalArgumentException("Column ${headers[index]} is not a field of schema ${schema.name}")
+            field.pos()
+        }
+        converters = Array(headers.size) { index -> converterFor(schema.getField(headers[index]).schema()) }
+        cells = arrayOfNulls(headers.size)
+    }
+
+    /**
+     * Maps a line of the CSV file, returning the reused record.
+     */
+    fun map(line: String): GenericRecord {
+        splitCells(line)
+        for (index in fieldPositions.indices) {
+            record.put(fieldPositions[index], converters[index](cells[index]!!))
+        }
+        return record
+    }
+
+    private fun splitCells(line: String) {
+        var start = 0
+        for (index in cells.indices) {
+            val end = if (index == cells.size - 1) line.length else line.indexOf(',', start)
+            if (end < 0)
+                throw IllegalArgumentException("Line has fewer than ${cells.size} columns: $line")
+            if (index == cells.size - 1 && line.indexOf(',', start) >= 0)
+                throw IllegalArgumentException("Line has more than ${cells.size} columns: $line")
+            cells[index] = line.substring(start, end)
+            start = end + 1
+        }
+    }
+
+    private companion object {
+
+        fun converterFor(fieldSchema: Schema): (String) -> Any? {
+            if (fieldSchema.type == Schema.Type.UNION) {
+                val branches = fieldSchema.types.filter { it.type != Schema.Type.NULL }
+                if (branches.size != 1)
+                    throw IllegalArgumentException("Only unions of null and a single type are supported, found $fieldSchema")
+                val branchConverter = converterFor(branches.single())
+                if (branches.size == fieldSchema.types.size)
+                    return branchConverter
+                return { value -> if (value.isBlank()) null else branchConverter(value) }
+            }
+            return when (fieldSchema.type) {
+                Schema.Type.STRING -> { value -> value.trim() }
+                Schema.Type.BYTES -> { value -> ByteBuffer.wrap(value.trim().toByteArray()) }
+                Schema.Type.INT -> { value -> value.trim().toInt() }
+                Schema.Type.LONG -> { value -> value.trim().toLong() }
+                Schema.Type.FLOAT -> { value -> value.trim().toFloat() }
+                Schema.Type.DOUBLE -> { value -> value.trim().toDouble() }
+                Schema.Type.BOOLEAN -> { value -> value.trim().toBoolean() }
+                Schema.Type.ENUM -> { value -> GenericData.EnumSymbol(fieldSchema, value.trim()) }
+                else -> { value -> value }
+            }
+        }
+    }
+}
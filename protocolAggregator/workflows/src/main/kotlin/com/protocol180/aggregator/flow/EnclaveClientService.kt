@@ -1,14 +1,19 @@
 package com.protocol180.aggregator.flow
 
+import net.corda.core.crypto.SecureHash
 import net.corda.core.node.AppServiceHub
 import net.corda.core.node.services.CordaService
 import net.corda.core.serialization.SingletonSerializeAsToken
+import org.apache.avro.AvroRuntimeException
 import org.apache.avro.Schema
+import org.apache.avro.SchemaNormalization
+import org.apache.avro.file.CodecFactory
+import org.apache.avro.file.DataFileConstants
 import org.apache.avro.file.DataFileReader
+import org.apache.avro.file.DataFileStream
 import org.apache.avro.file.DataFileWriter
 import org.apache.avro.file.SeekableByteArrayInput
 import org.apache.avro.file.SeekableInput
-import org.apache.avro.generic.GenericData
 import org.apache.avro.generic.GenericDatumReader
 import org.apache.avro.generic.GenericDatumWriter
 import org.apache.avro.generic.GenericRecord
@@ -16,88 +21,203 @@ import org.apache.avro.io.DatumReader
 import org.apache.avro.io.DatumWriter
 import org.apache.avro.io.EncoderFactory
 import java.io.*
+import java.security.MessageDigest
 import java.lang.Boolean
 import java.util.*
-import java.util.function.Consumer
-import java.util.zip.ZipFile
+import java.util.concurrent.ConcurrentHashMap
 import java.util.zip.ZipInputStream
 
+/**
+ * Parsed schemas of a coalition data type's envelope schema, as handed out by [EnclaveClientService.schemasFor].
+ * Instances are immutable and shared by all flows using the data type, together with the datum writer provider data
+ * is encoded with. Datum readers are not shared, as reading a data file binds the reader to the file's writer schema.
+ */
+class EnvelopeSchemas(val envelopeSchema: Schema) {
+    val aggregationInputSchema: Schema = envelopeSchema.getField("aggregateInput").schema()
+    val aggregationOutputSchema: Schema = envelopeSchema.getField("aggregateOutput").schema()
+    val rewardsOutputSchema: Schema = envelopeSchema.getField("rewardsOutput").schema()
+
+    /**
+     * Fingerprint of the 'aggregateInput' schema provider data is encoded with, identifying encoded inputs that can be
+     * reused as long as the schema is unchanged.
+     */
+    val aggregationInputSchemaFingerprint: String =
+            java.lang.Long.toHexString(SchemaNormalization.parsingFingerprint64(aggregationInputSchema))
+
+    val aggregationInputDatumWriter: DatumWriter<GenericRecord> = GenericDatumWriter(aggregationInputSchema)
+}
+
+/**
+ * Count and SHA-256 digest of the data rows of a zipped CSV data attachment, as computed by
+ * [EnclaveClientService.digestProviderDataRows] to track incremental uploads. Digests cover the header line too, and
+ * [prefixDigest] covers the rows up to the requested count only, null if the attachment has fewer rows.
+ */
+class ProviderDataRows(val rowCount: Int, val rowsDigest: String, val prefixDigest: String?)
+
 /**
  * A utility service to provide functionality of avro serialization, creating data input for providers and
- * generating response records from decrypted output
+ * generating response records from decrypted output.
+ * Envelope schemas are parsed once per data type and schema content, and kept in a registry shared by all flows.
  */
 @CordaService
 class EnclaveClientService(val services: AppServiceHub) : SingletonSerializeAsToken() {
 
+    private val schemaRegistry = ConcurrentHashMap<String, EnvelopeSchemas>()
 
-    var envelopeSchema: Schema? = null
-    var aggregationInputSchema: Schema? = null
-    var aggregationOutputSchema: Schema? = null
-    var rewardsOutputSchema: Schema? = null
+    /**
+     * Returns the parsed schemas of a data type's envelope schema, parsing it only the first time it is seen. The
+     * registry is keyed by the data type code and the hash of the schema, so an updated coalition configuration gets
+     * its schema parsed again.
+     */
+    fun schemasFor(dataType: String, envelopeSchema: ByteArray): EnvelopeSchemas {
+        return schemaRegistry.computeIfAbsent("$dataType:${SecureHash.sha256(envelopeSchema)}") {
+            val schema = try {
+                Schema.Parser().parse(String(envelopeSchema))
+            } catch (e: Exception) {
+                throw IllegalArgumentException("Wrong schema provided for data aggregation.")
+            }
+            EnvelopeSchemas(schema)
+        }
+    }
 
-    fun initializeSchema(envelopeSchema: String) {
-        val envelopeSchema = try {
-            Schema.Parser().parse(envelopeSchema)
-        } catch (e: Exception) {
-            throw IllegalArgumentException("Wrong schema provided for data aggregation.")
+    /**
+     * Returns the Avro codec for a data type's compression codec name, the null codec if it has none. The CorDapp
+     * bundles the libraries of the "xz", "snappy" and "zstandard" codecs, "deflate" and "bzip2" come with Avro. Pure
+     * Java codecs ("deflate", "xz", "bzip2") work in any enclave, codecs relying on native libraries need them in the
+     * enclave too.
+     */
+    fun codecFor(compressionCodec: String?): CodecFactory {
+        if (compressionCodec == null)
+            return CodecFactory.nullCodec()
+        return try {
+            CodecFactory.fromString(compressionCodec)
+        } catch (e: AvroRuntimeException) {
+            throw IllegalArgumentException("Unsupported compression codec $compressionCodec", e)
         }
-        aggregationInputSchema = envelopeSchema!!.getField("aggregateInput").schema()
-        aggregationOutputSchema = envelopeSchema!!.getField("aggregateOutput").schema()
-        rewardsOutputSchema = envelopeSchema!!.getField("rewardsOutput").schema()
     }
 
+    /**
+     * Creates the Avro encoded provider input from a zipped CSV data attachment. The attachment is streamed from its
+     * zip entry through a line reader and a [CsvRowMapper] into the Avro data file one line at a time, so memory
+     * use doesn't grow with the dataset beyond the encoded output itself. The first [skipRows] data rows are skipped
+     * without being parsed, for incremental uploads of the rows added since the provider's last aggregation.
+     */
+    fun createProviderDataRecordForAggregation(schemas: EnvelopeSchemas, attachmentStream: InputStream,
+                                               codec: CodecFactory = CodecFactory.nullCodec(), skipRows: Int = 0): ByteArray {
+        ZipInputStream(attachmentStream).use { zis ->
+            zis.nextEntry ?: throw FileNotFoundException("Input Data CSV file is not available into attachment.")
+            val lines = zis.bufferedReader().lineSequence().filter { it != "" }.iterator()
+            if (!lines.hasNext())
+                throw IllegalArgumentException("Input Data CSV file has no header line.")
+            val headerLine = lines.next()
+            repeat(skipRows) { if (lines.hasNext()) lines.next() }
+            return encodeProviderDataRecords(schemas, headerLine, lines, codec)
+        }
+    }
 
-    fun createProviderDataRecordForAggregation(headerLine: String, lineList: MutableList<String>): ByteArray? {
-        //create generic records using avro schema for aggregation and append to file
-        val genericRecords = ArrayList<GenericRecord>()
-        val headers = headerLine.split(",")
-        lineList.forEach() {
-            val demandRecord: GenericRecord = GenericData.Record(aggregationInputSchema)
-            val dataValues = it.split(",")
-            headers.forEachIndexed {
-                index, value ->
-                val schemaType = aggregationInputSchema!!.getField(value).schema().type;
-                val parsedValue = parseValuesToSchemaType(dataValues[index], schemaType);
-                demandRecord.put(value, parsedValue);
+    /**
+     * Counts and digests the data rows of a zipped CSV data attachment, without parsing them. Providers uploading
+     * incrementally check with [ProviderDataRows.prefixDigest] that the rows they uploaded up to their watermark are
+     * unchanged, as only rows appended since can be uploaded on their own.
+     */
+    fun digestProviderDataRows(attachmentStream: InputStream, prefixRowCount: Int): ProviderDataRows {
+        ZipInputStream(attachmentStream).use { zis ->
+            zis.nextEntry ?: throw FileNotFoundException("Input Data CSV file is not available into attachment.")
+            val digest = MessageDigest.getInstance("SHA-256")
+            var prefixDigest: String? = null
+            //the header line is counted as row -1, so the prefix of 0 rows covers the header only
+            var rowCount = -1
+            zis.bufferedReader().lineSequence().filter { it != "" }.forEach { line ->
+                digest.update((line + "\n").toByteArray())
+                if (++rowCount == prefixRowCount)
+                    prefixDigest = SecureHash.SHA256((digest.clone() as MessageDigest).digest()).toString()
             }
-            genericRecords.add(demandRecord)
+            if (rowCount < 0)
+                throw IllegalArgumentException("Input Data CSV file has no header line.")
+            return ProviderDataRows(rowCount, SecureHash.SHA256(digest.digest()).toString(), prefixDigest)
         }
-        return createAvroDataFileFromGenericRecords(genericRecords)
     }
 
-    private fun parseValuesToSchemaType(dataValues: String, schemaType: Schema.Type): Any {
-        when (schemaType) {
-            Schema.Type.STRING -> return dataValues.trim { it <= ' ' }
-            Schema.Type.BYTES -> return dataValues.trim { it <= ' ' }.toByte()
-            Schema.Type.INT -> return dataValues.trim { it <= ' ' }.toInt()
-            Schema.Type.LONG -> return dataValues.trim { it <= ' ' }.toLong()
-            Schema.Type.FLOAT -> return dataValues.trim { it <= ' ' }.toFloat()
-            Schema.Type.DOUBLE -> return dataValues.trim { it <= ' ' }.toDouble()
-            Schema.Type.BOOLEAN -> return dataValues.trim { it <= ' ' }.toBoolean()
+    /**
+     * Digests the records of the Avro encoded provider input, as reported to the enclave for its result cache: the
+     * binary encoding of the records in order, which the enclave digests the same way as it decodes the provider's
+     * upload, whatever its codec, chunks or the rows retained from an earlier aggregation.
+     */
+    fun digestProviderDataRecords(avroInputBytes: ByteArray): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        DataFileStream(ByteArrayInputStream(avroInputBytes), GenericDatumReader<GenericRecord>()).use { dataFileStream ->
+            while (dataFileStream.hasNext())
+                digest.update(dataFileStream.nextBlock())
         }
+        return SecureHash.SHA256(digest.digest()).toString()
+    }
 
-        return dataValues;
+    fun createProviderDataRecordForAggregation(schemas: EnvelopeSchemas, headerLine: String, lineList: MutableList<String>): ByteArray? {
+        return encodeProviderDataRecords(schemas, headerLine, lineList.iterator(), CodecFactory.nullCodec())
     }
 
-    private fun createAvroDataFileFromGenericRecords(genericRecords: ArrayList<GenericRecord>): ByteArray {
-        val datumWriter: DatumWriter<GenericRecord> = GenericDatumWriter(aggregationInputSchema)
-        val dataFileWriter = DataFileWriter(datumWriter)
+    private fun encodeProviderDataRecords(schemas: EnvelopeSchemas, headerLine: String, lines: Iterator<String>,
+                                          codec: CodecFactory): ByteArray {
+        //map lines to generic records using avro schema for aggregation and append to file
+        val rowMapper = CsvRowMapper(headerLine, schemas.aggregationInputSchema)
         val byteArrayOutputStream = ByteArrayOutputStream()
-        dataFileWriter.create(aggregationInputSchema, byteArrayOutputStream)
-        genericRecords.forEach(Consumer { genericRecord: GenericRecord ->
-            try {
-                dataFileWriter.append(genericRecord)
-            } catch (e: IOException) {
-                e.printStackTrace()
-            }
-        })
-        byteArrayOutputStream.close()
-        dataFileWriter.close()
+        DataFileWriter(schemas.aggregationInputDatumWriter).use { dataFileWriter ->
+            dataFileWriter.setCodec(codec)
+            dataFileWriter.create(schemas.aggregationInputSchema, byteArrayOutputStream)
+            lines.forEach { dataFileWriter.append(rowMapper.map(it)) }
+        }
         return byteArrayOutputStream.toByteArray()
     }
 
-    fun readGenericRecordsFromOutputBytesAndSchema(outputBytes: ByteArray, schemaType: String): ArrayList<GenericRecord?> {
-        val datumReader: DatumReader<GenericRecord> = if (schemaType == "aggregate") GenericDatumReader(aggregationOutputSchema) else GenericDatumReader(rewardsOutputSchema)
+    /**
+     * Splits the Avro encoded provider input into standalone Avro data files of about [chunkSize] bytes each, for
+     * chunked uploads to the enclave. Records are never split across chunks, so each chunk can be decoded on its own.
+     * Chunks are encoded lazily, one per call to next, and an input without records still yields one (empty) chunk.
+     * Chunks are compressed with the codec of the input.
+     */
+    fun splitProviderDataRecords(avroInputBytes: ByteArray, chunkSize: Int): Iterator<ByteArray> {
+        require(chunkSize > 0) { "Chunk size must be positive" }
+        return ProviderDataChunkIterator(DataFileStream(ByteArrayInputStream(avroInputBytes), GenericDatumReader<GenericRecord>()), chunkSize)
+    }
+
+    private class ProviderDataChunkIterator(private val dataFileStream: DataFileStream<GenericRecord>,
+                                            private val chunkSize: Int) : Iterator<ByteArray> {
+        private val datumWriter = GenericDatumWriter<GenericRecord>(dataFileStream.schema)
+        private val codec = CodecFactory.fromString(dataFileStream.getMetaString(DataFileConstants.CODEC) ?: DataFileConstants.NULL_CODEC)
+        private var dataRecord: GenericRecord? = null
+        private var firstChunk = true
+
+        override fun hasNext(): kotlin.Boolean = firstChunk || dataFileStream.hasNext()
+
+        override fun next(): ByteArray {
+            if (!hasNext())
+                throw NoSuchElementException()
+            firstChunk = false
+            val chunkOutputStream = ByteArrayOutputStream()
+            DataFileWriter(datumWriter).use { dataFileWriter ->
+                //blocks are flushed to the chunk well before it reaches the chunk size, bounding the overshoot
+                dataFileWriter.setSyncInterval(Math.max(chunkSize / 8, 32))
+                dataFileWriter.setCodec(codec)
+                dataFileWriter.create(dataFileStream.schema, chunkOutputStream)
+                //every chunk takes at least one record, however small the chunk size
+                while (dataFileStream.hasNext()) {
+                    dataRecord = dataFileStream.next(dataRecord)
+                    dataFileWriter.append(dataRecord)
+                    if (chunkOutputStream.size() >= chunkSize)
+                        break
+                }
+            }
+            if (!dataFileStream.hasNext())
+                dataFileStream.close()
+            return chunkOutputStream.toByteArray()
+        }
+    }
+
+    /**
+     * Reads the records of an output data file received from the enclave, using the schema the enclave wrote it with.
+     */
+    fun readGenericRecordsFromOutputBytes(outputBytes: ByteArray): ArrayList<GenericRecord?> {
+        val datumReader: DatumReader<GenericRecord> = GenericDatumReader()
         val input: SeekableInput = SeekableByteArrayInput(outputBytes)
         val dataFileReader = DataFileReader(input, datumReader)
         val genericRecords = ArrayList<GenericRecord?>()
@@ -109,11 +229,15 @@ class EnclaveClientService(val services: AppServiceHub) : SingletonSerializeAsTo
         return genericRecords
     }
 
-    fun readJsonFromOutputBytesAndSchema(outputBytes: ByteArray, schemaType: String): ByteArrayOutputStream {
-        val schema = if (schemaType == "aggregate") aggregationOutputSchema else rewardsOutputSchema
-        val datumReader: DatumReader<GenericRecord> = GenericDatumReader(schema)
+    /**
+     * Encodes the records of an output data file received from the enclave into JSON, using the schema the enclave wrote
+     * it with.
+     */
+    fun readJsonFromOutputBytes(outputBytes: ByteArray): ByteArrayOutputStream {
+        val datumReader: DatumReader<GenericRecord> = GenericDatumReader()
         val input: SeekableInput = SeekableByteArrayInput(outputBytes)
         val dataFileReader = DataFileReader(input, datumReader)
+        val schema = dataFileReader.schema
         val genericRecords = ArrayList<GenericRecord?>()
         var dataRecord: GenericRecord?
         while (dataFileReader.hasNext()) {
@@ -129,24 +253,4 @@ class EnclaveClientService(val services: AppServiceHub) : SingletonSerializeAsTo
         encoder.flush()
         return outputStream
     }
-
-    fun readInputDataFromAttachment(zipData: ByteArray): MutableList<String> {
-        val attachmentFile = File("provider_data_file.zip")
-        attachmentFile.writeBytes(zipData)
-        val zipAttachmentFile = ZipFile(attachmentFile)
-        val zis = ZipInputStream(FileInputStream(attachmentFile))
-
-        val zipEntry = zis.nextEntry
-                ?: throw FileNotFoundException("Input Data CSV file is not available into attachment.")
-        val inputStream = zipAttachmentFile.getInputStream(zipEntry)
-        val lineList = mutableListOf<String>()
-
-        inputStream.bufferedReader().forEachLine { if (it != "") lineList.add(it) }
-        inputStream.close()
-        zis.close()
-
-        zipAttachmentFile.close()
-        attachmentFile.delete()
-        return lineList
-    }
 }
@@ -1,12 +1,16 @@
 package com.protocol180.aggregator.flow
 
 import co.paralleluniverse.fibers.Suspendable
+import com.protocol180.aggregator.commons.MailEnvelope
+import com.protocol180.aggregator.commons.MailType
 import com.protocol180.aggregator.contracts.RewardsContract
 import com.protocol180.aggregator.states.RewardsState
+import com.protocol180.aggregator.states.RoleType
 import com.r3.conclave.common.EnclaveInstanceInfo
 import com.r3.conclave.mail.Curve25519PrivateKey
 import com.r3.conclave.mail.PostOffice
 import net.corda.core.contracts.CommandData
+import net.corda.core.crypto.SecureHash
 import net.corda.core.flows.CollectSignaturesFlow
 import net.corda.core.flows.FinalityFlow
 import net.corda.core.flows.FlowLogic
@@ -15,12 +19,12 @@ import net.corda.core.flows.InitiatedBy
 import net.corda.core.flows.InitiatingFlow
 import net.corda.core.flows.ReceiveFinalityFlow
 import net.corda.core.flows.SignTransactionFlow
-import net.corda.core.internal.readFully
 import net.corda.core.node.services.AttachmentId
 import net.corda.core.node.services.vault.AttachmentQueryCriteria
 import net.corda.core.node.services.vault.AttachmentSort
 import net.corda.core.node.services.vault.Builder
 import net.corda.core.node.services.vault.Sort
+import net.corda.core.serialization.CordaSerializable
 import net.corda.core.transactions.SignedTransaction
 import net.corda.core.transactions.TransactionBuilder
 import net.corda.core.utilities.loggerFor
@@ -58,22 +62,26 @@ class ProviderAggregationResponseFlow(private val hostSession: FlowSession) : Fl
         val enclaveClientService = serviceHub.cordaService(EnclaveClientService::class.java)
 
 
-        val attestationBytesAndDataType = hostSession.receive<Pair<ByteArray, String>>().unwrap { it }
-        val attestationBytes = attestationBytesAndDataType.first
-        val dataType = attestationBytesAndDataType.second
+        val providerDataRequest = hostSession.receive<ProviderDataRequest>().unwrap { it }
+        val attestationBytes = providerDataRequest.attestationBytes
+        val dataType = providerDataRequest.dataType
         val encryptionKey = Curve25519PrivateKey.random()
         val flowTopic: String = this.runId.uuid.toString()
 
         //checking weather this node is participant for given coalition or not
-        val coalitionConfiguration = coalitionConfigurationStateService.findCoalitionConfigurationStateForParticipants(listOf(provider))
+        val coalitionConfiguration = coalitionConfigurationStateService.findCoalitionConfigurationForParticipants(listOf(provider))
 
         if (coalitionConfiguration == null) {
             throw ConsumerAggregationFlowException("Coalition Configuration is not known to node, host needs to update configuration and include node in participants")
-        } else if (!coalitionConfiguration.state.data.isSupportedDataType(dataType)) {
+        } else if (!coalitionConfiguration.isSupportedDataType(dataType)) {
             throw ConsumerAggregationFlowException("Unsupported data type requested for aggregation, please use a supported data type configured in the coalition configuration")
+        } else if (RoleType.COALITION_HOST !in coalitionConfiguration.getRolesForParty(host)) {
+            throw ConsumerAggregationFlowException("Provider data requested by a party that is not the coalition host")
         }
 
-        enclaveClientService.initializeSchema(String(coalitionConfiguration.state.data.getDataTypeForCode(dataType)!!.schemaFile))
+        //schemas are looked up from the registry where used rather than kept across suspension points
+        val schemaFile = coalitionConfiguration.getDataTypeForCode(dataType)!!.schemaFile
+        val compressionCodec = coalitionConfiguration.getDataTypeForCode(dataType)!!.compressionCodec
 
         log.info("inside provider flow, postOffice has been created successfully")
         val postOffice: PostOffice = EnclaveInstanceInfo.deserialize(attestationBytes).createPostOffice(encryptionKey, flowTopic)
@@ -82,24 +90,58 @@ class ProviderAggregationResponseFlow(private val hostSession: FlowSession) : Fl
         val listOfAttachmentHash: List<AttachmentId> = serviceHub.attachments.queryAttachments(
             AttachmentQueryCriteria.AttachmentsQueryCriteria(uploaderCondition = Builder.equal(dataType)),
             AttachmentSort(listOf(AttachmentSort.AttachmentSortColumn(AttachmentSort.AttachmentSortAttribute.INSERTION_DATE, Sort.Direction.DESC))))
-        val attachment = serviceHub.attachments.openAttachment(listOfAttachmentHash.first())
-        val recordList = enclaveClientService.readInputDataFromAttachment(attachment!!.open().readFully())
+        val attachmentId = listOfAttachmentHash.first()
+        //the encoded input is the same as long as neither the attachment, the schema nor the compression codec changed
+        val inputFingerprint = enclaveClientService.schemasFor(dataType, schemaFile).aggregationInputSchemaFingerprint +
+                (compressionCodec?.let { "/$it" } ?: "")
 
-        val headerLine = recordList.first()
-        recordList.remove(headerLine)
-
-        val providerDataPair = Pair(encryptionKey.publicKey.toString(), postOffice.encryptMail(enclaveClientService
-                .createProviderDataRecordForAggregation(headerLine, recordList)!!))
-        //Provider shares public key and encrypted data with host
-        hostSession.send(providerDataPair)
+        val uploadRequested = if (providerDataRequest.reportInputDigest) {
+            //the host only asks for the data if the enclave holds no outputs of an aggregation over the same inputs,
+            //the enclave binds the digest to the provider's identity token and checks it against the data it receives
+            val inputDigest = providerDbStoreService.retrieveProviderIdentityToken(dataType) + ":" +
+                    digestProviderInput(dataType, schemaFile, compressionCodec, attachmentId, inputFingerprint)
+            hostSession.sendAndReceive<Boolean>(postOffice.encryptMail(inputDigest.toByteArray(),
+                    MailEnvelope(MailType.TYPE_PROVIDER_DIGEST).serialize())).unwrap { it }
+        } else true
+        var incrementalUpload: IncrementalUpload? = null
+        if (uploadRequested) {
+            //an incremental upload only sends the rows added since those the enclave retained for the provider
+            if (providerDataRequest.incremental)
+                incrementalUpload = claimRetainedRows(dataType, attachmentId, inputFingerprint, postOffice)
+            sendProviderData(dataType, schemaFile, compressionCodec, attachmentId, inputFingerprint, postOffice,
+                    encryptionKey.publicKey.toString(), providerDataRequest.chunkSize, incrementalUpload?.retainedRowCount ?: 0)
+        }
 
-        //Provider acknowledges rewards schema from host
-        val rewardCalculationFlag = hostSession.receive<String>().unwrap { it }
+        //Provider acknowledges rewards request from host
+        val rewardsRequest = hostSession.receive<RewardsRequest>().unwrap { it }
         //Provider receives encrypted rewards data from enclave via host
-        val encryptedRewardByteArray = hostSession.sendAndReceive<ByteArray>(postOffice.encryptMail(enclaveClientService.rewardsOutputSchema.toString().toByteArray())).unwrap { it }
+        val encryptedRewardByteArray = hostSession.sendAndReceive<ByteArray>(postOffice.encryptMail(enclaveClientService.schemasFor(dataType, schemaFile).rewardsOutputSchema.toString().toByteArray(),
+                MailEnvelope(MailType.TYPE_REWARDS).serialize())).unwrap { it }
         val decryptedRewardByteArray = postOffice.decryptMail(encryptedRewardByteArray).bodyAsBytes
         providerDbStoreService.addRewardResponseWithFlowId(this.runId.uuid.toString(), decryptedRewardByteArray,
-                coalitionConfiguration.state.contract)
+                coalitionConfiguration.stateAndRef.state.contract)
+        //the enclave retains the rows of an acknowledged aggregation, later uploads start after them
+        incrementalUpload?.let {
+            providerDbStoreService.updateProviderDataWatermark(dataType, it.baselineToken, inputFingerprint, it.rowCount, it.rowsDigest)
+        }
+
+        if (rewardsRequest.batchedIssuance) {
+            //Host issues the rewards states of all providers, provider shares the hash of its rewards and signs its own state
+            val rewardsHash = SecureHash.sha256(decryptedRewardByteArray)
+            hostSession.send(Pair(flowTopic, rewardsHash))
+            val signTransactionFlow = object : SignTransactionFlow(hostSession) {
+                override fun checkTransaction(stx: SignedTransaction) {
+                    log.info("Checking batched rewards transaction before signing: ${stx.tx.id}")
+                    val rewardsState = stx.tx.outputsOfType<RewardsState>().single { it.provider == provider }
+                    check(rewardsState.host == host && rewardsState.flowTopic == flowTopic &&
+                            rewardsState.decryptedRewardsBytes.isEmpty() && rewardsState.rewardsHash == rewardsHash) {
+                        "Rewards State of provider must hold the hash of the rewards received from the enclave only"
+                    }
+                }
+            }
+            val txWeJustSignedId = subFlow(signTransactionFlow)
+            return subFlow(ReceiveFinalityFlow(otherSideSession = hostSession, expectedTxId = txWeJustSignedId.id))
+        }
 
         val hostRewardsResponseSession = initiateFlow(host)
         val commandData: CommandData = RewardsContract.Commands.Create()
@@ -115,8 +157,139 @@ class ProviderAggregationResponseFlow(private val hostSession: FlowSession) : Fl
         return subFlow(FinalityFlow(fullySignedTransaction, listOf(hostRewardsResponseSession)))
 
     }
+
+    /**
+     * Claims the rows the enclave retained from the provider's last aggregation, as tracked by the data type's
+     * watermark, provided the attachment still starts with these rows and they were encoded the same way. The enclave
+     * replies with the number of rows it holds for the provider, all the claimed rows or none if it no longer holds
+     * them, which the upload then skips.
+     */
+    @Suspendable
+    private fun claimRetainedRows(dataType: String, attachmentId: AttachmentId, inputFingerprint: String,
+                                  postOffice: PostOffice): IncrementalUpload {
+        val providerDbStoreService = serviceHub.cordaService(ProviderDBStoreService::class.java)
+        val enclaveClientService = serviceHub.cordaService(EnclaveClientService::class.java)
+
+        val watermark = providerDbStoreService.retrieveProviderDataWatermark(dataType)
+        val providerDataRows = serviceHub.attachments.openAttachment(attachmentId)!!.open().use {
+            enclaveClientService.digestProviderDataRows(it, watermark?.rowCount ?: 0)
+        }
+        //rows that were changed rather than appended to, or are encoded differently, are uploaded again in full
+        val claimedRowCount = if (watermark != null && watermark.inputFingerprint == inputFingerprint &&
+                watermark.rowsDigest == providerDataRows.prefixDigest) watermark.rowCount else 0
+        //the token is only ever sent encrypted for the enclave, so no other party can build on the provider's rows
+        val baselineToken = watermark?.baselineToken ?: SecureHash.randomSHA256().toString()
+        val encryptedRowCount = hostSession.sendAndReceive<ByteArray>(postOffice.encryptMail("$baselineToken:$claimedRowCount".toByteArray(),
+                MailEnvelope(MailType.TYPE_PROVIDER_BASELINE).serialize())).unwrap { it }
+        val retainedRowCount = String(postOffice.decryptMail(encryptedRowCount).bodyAsBytes).toInt()
+        return IncrementalUpload(baselineToken, retainedRowCount, providerDataRows.rowCount, providerDataRows.rowsDigest)
+    }
+
+    /**
+     * Encodes the provider's data for the requested data type and sends it to the host encrypted for the enclave. The
+     * data only lives in this function's frame, so it doesn't weigh on the checkpoints of the rest of the flow.
+     * The first [skipRows] rows, retained by the enclave from the provider's last aggregation, are left out.
+     * When the host requests a chunked upload, the data is sent as numbered chunks of about [chunkSize] bytes, each
+     * encrypted as a mail of its own. The next chunk is only encrypted and sent once the host acknowledged the previous
+     * one, so neither side holds more than one chunk in flight.
+     */
+    @Suspendable
+    private fun sendProviderData(dataType: String, schemaFile: ByteArray, compressionCodec: String?, attachmentId: AttachmentId,
+                                 inputFingerprint: String, postOffice: PostOffice, publicKey: String, chunkSize: Int,
+                                 skipRows: Int) {
+        val enclaveClientService = serviceHub.cordaService(EnclaveClientService::class.java)
+
+        val providerInputBytes = encodeProviderInput(dataType, schemaFile, compressionCodec, attachmentId, inputFingerprint, skipRows)
+
+        //Provider shares public key and encrypted data with host, skipping the checkpoints so none holds the data
+        if (chunkSize <= 0) {
+            hostSession.send(ProviderDataChunk(publicKey, 0, true, postOffice.encryptMail(providerInputBytes,
+                    MailEnvelope(MailType.TYPE_PROVIDER).serialize())), true)
+            return
+        }
+        val chunks = enclaveClientService.splitProviderDataRecords(providerInputBytes, chunkSize)
+        var chunkIndex = 0
+        while (chunks.hasNext()) {
+            val chunk = chunks.next()
+            val lastChunk = !chunks.hasNext()
+            val providerDataChunk = ProviderDataChunk(publicKey, chunkIndex, lastChunk, postOffice.encryptMail(chunk,
+                    MailEnvelope(MailType.TYPE_PROVIDER, chunkIndex, lastChunk).serialize()))
+            if (lastChunk)
+                hostSession.send(providerDataChunk, true)
+            else
+                hostSession.sendAndReceive(ByteArray::class.java, providerDataChunk, true)
+            chunkIndex++
+        }
+    }
+
+    /**
+     * Digests the records of the provider's full input, as the enclave digests those it receives. The input is
+     * encoded, and cached for the upload the host may then request, if it hasn't been encoded with the current schema
+     * and codec before.
+     */
+    private fun digestProviderInput(dataType: String, schemaFile: ByteArray, compressionCodec: String?,
+                                    attachmentId: AttachmentId, inputFingerprint: String): String {
+        val enclaveClientService = serviceHub.cordaService(EnclaveClientService::class.java)
+        return enclaveClientService.digestProviderDataRecords(encodeProviderInput(dataType, schemaFile, compressionCodec,
+                attachmentId, inputFingerprint, 0))
+    }
+
+    /**
+     * Returns the Avro encoded provider input, without its first [skipRows] rows. The attachment is only parsed and
+     * encoded if it hasn't been encoded with the current schema and codec before.
+     */
+    private fun encodeProviderInput(dataType: String, schemaFile: ByteArray, compressionCodec: String?,
+                                    attachmentId: AttachmentId, inputFingerprint: String, skipRows: Int): ByteArray {
+        val providerDbStoreService = serviceHub.cordaService(ProviderDBStoreService::class.java)
+        val enclaveClientService = serviceHub.cordaService(EnclaveClientService::class.java)
+
+        val attachmentHash = attachmentId.toString()
+        val uploadFingerprint = if (skipRows > 0) "$inputFingerprint+$skipRows" else inputFingerprint
+        return providerDbStoreService.retrieveCachedProviderInput(attachmentHash, uploadFingerprint) ?: run {
+            val attachment = serviceHub.attachments.openAttachment(attachmentId)
+            val avroInputBytes = attachment!!.open().use {
+                enclaveClientService.createProviderDataRecordForAggregation(enclaveClientService.schemasFor(dataType, schemaFile), it,
+                        enclaveClientService.codecFor(compressionCodec), skipRows)
+            }
+            providerDbStoreService.addCachedProviderInput(dataType, attachmentHash, uploadFingerprint, avroInputBytes)
+            avroInputBytes
+        }
+    }
 }
 
+/**
+ * Sent by the host to request data from providers. A positive [chunkSize] requests a chunked upload of chunks of about
+ * that many bytes, otherwise the provider's data is uploaded as a single mail. When [reportInputDigest] is set, the
+ * provider first sends its identity token and the digest of its input records to the enclave, and only uploads its
+ * data if the host asks for it.
+ * When [incremental] is set, the provider claims the rows the enclave retained from its last aggregation before
+ * uploading, and only uploads the rows added since.
+ */
+@CordaSerializable
+data class ProviderDataRequest(val attestationBytes: ByteArray, val dataType: String, val chunkSize: Int,
+                               val reportInputDigest: Boolean, val incremental: Boolean)
+
+/**
+ * Progress of a provider's incremental upload: the rows the enclave retained under the provider's baseline token, and
+ * the count and digest of all rows of the attachment, which become the provider's watermark once acknowledged.
+ */
+private data class IncrementalUpload(val baselineToken: String, val retainedRowCount: Int, val rowCount: Int,
+                                     val rowsDigest: String)
+
+/**
+ * A provider's data, or a chunk of it in a chunked upload, encrypted for the enclave. [chunkIndex] and [lastChunk]
+ * mirror the mail's envelope, telling the host whether more chunks follow.
+ */
+@CordaSerializable
+data class ProviderDataChunk(val publicKey: String, val chunkIndex: Int, val lastChunk: Boolean, val encryptedData: ByteArray)
+
+/**
+ * Sent by the host to request rewards from providers. When [batchedIssuance] is set, the host issues the [RewardsState]s
+ * of all providers in one transaction, otherwise each provider issues its own.
+ */
+@CordaSerializable
+data class RewardsRequest(val dataType: String, val batchedIssuance: Boolean)
+
 /**
  * Counter flow for [ProviderAggregationResponseFlow]. [RewardsState] is received and validated by the host
  * **/
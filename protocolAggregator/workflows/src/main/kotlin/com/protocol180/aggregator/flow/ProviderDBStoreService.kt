@@ -1,7 +1,11 @@
 package com.protocol180.aggregator.flow
 
+import com.protocol180.aggregator.schema.ProviderDataWatermarkSchemaV1
+import com.protocol180.aggregator.schema.ProviderIdentitySchemaV1
+import com.protocol180.aggregator.schema.ProviderInputCacheSchemaV1
 import com.protocol180.aggregator.schema.ProviderInputSchemaV1
 import com.protocol180.aggregator.schema.ProviderRewardSchemaV1
+import net.corda.core.crypto.SecureHash
 import net.corda.core.node.AppServiceHub
 import net.corda.core.node.services.CordaService
 import net.corda.core.serialization.SingletonSerializeAsToken
@@ -9,7 +13,10 @@ import net.corda.core.serialization.SingletonSerializeAsToken
 
 /**
  * A database service subclass for handling a table used for persisting encrypted Provider inputs.
- * & also for handling a table used for persisting decrypted provider rewards received from enclave.
+ * & also for handling a table used for persisting decrypted provider rewards received from enclave
+ * & also for handling a table caching the Avro encoded inputs created from provider data attachments
+ * & also for handling a table tracking the watermark of providers uploading their data incrementally
+ * & also for handling a table holding the identity tokens providers report along with the digest of their input.
  *
  * @param services The node's service hub.
  */
@@ -79,4 +86,70 @@ class ProviderDBStoreService(val services: AppServiceHub) : SingletonSerializeAs
         return dataOutput?.providerInputs?.map { it.publicKey to it.input }?.toMap()
     }
 
-}
\ No newline at end of file
+    /**
+     * Adds the Avro encoded input created from a data attachment into the provider input cache. Inputs cached for
+     * other attachments of the same data type are dropped, as aggregations always use the latest attachment, while
+     * the other inputs of the same attachment (e.g. its full input and the delta of its new rows) are kept.
+     */
+    fun addCachedProviderInput(dataType: String, attachmentHash: String, schemaFingerprint: String, avroInputBytes: ByteArray) {
+        val cachedProviderInput = ProviderInputCacheSchemaV1.CachedProviderInput(cacheKey(attachmentHash, schemaFingerprint),
+                attachmentHash, schemaFingerprint, dataType, avroInputBytes)
+        services.withEntityManager {
+            val delete = criteriaBuilder.createCriteriaDelete(ProviderInputCacheSchemaV1.CachedProviderInput::class.java)
+            val type = delete.from(ProviderInputCacheSchemaV1.CachedProviderInput::class.java)
+            delete.where(criteriaBuilder.and(criteriaBuilder.equal(type.get<String>("dataType"), dataType),
+                    criteriaBuilder.notEqual(type.get<String>("attachmentHash"), attachmentHash)))
+            createQuery(delete).executeUpdate()
+            merge(cachedProviderInput)
+        }
+    }
+
+    /**
+     * Retrieves the Avro encoded input cached for a data attachment and 'aggregateInput' schema fingerprint, or null if
+     * the attachment has not been encoded with that schema yet.
+     */
+    fun retrieveCachedProviderInput(attachmentHash: String, schemaFingerprint: String): ByteArray? {
+        var result: ProviderInputCacheSchemaV1.CachedProviderInput? = null
+        services.withEntityManager {
+            result = find(ProviderInputCacheSchemaV1.CachedProviderInput::class.java, cacheKey(attachmentHash, schemaFingerprint))
+        }
+        return result?.avroInputBytes
+    }
+
+    /**
+     * Stores the watermark of a data type, replacing the previous one: the rows of its attachment the enclave retained
+     * as of the provider's last acknowledged aggregation.
+     */
+    fun updateProviderDataWatermark(dataType: String, baselineToken: String, inputFingerprint: String, rowCount: Int, rowsDigest: String) {
+        services.withEntityManager {
+            merge(ProviderDataWatermarkSchemaV1.ProviderDataWatermark(dataType, baselineToken, inputFingerprint, rowCount, rowsDigest))
+        }
+    }
+
+    /**
+     * Retrieves the watermark of a data type, or null if the provider never uploaded its data incrementally.
+     */
+    fun retrieveProviderDataWatermark(dataType: String): ProviderDataWatermarkSchemaV1.ProviderDataWatermark? {
+        var result: ProviderDataWatermarkSchemaV1.ProviderDataWatermark? = null
+        services.withEntityManager {
+            result = find(ProviderDataWatermarkSchemaV1.ProviderDataWatermark::class.java, dataType)
+        }
+        return result
+    }
+
+    /**
+     * Retrieves the identity token of a data type, creating a random one the first time the provider reports the
+     * digest of its input for the data type.
+     */
+    fun retrieveProviderIdentityToken(dataType: String): String {
+        var result: ProviderIdentitySchemaV1.ProviderIdentity? = null
+        services.withEntityManager {
+            result = find(ProviderIdentitySchemaV1.ProviderIdentity::class.java, dataType)
+                    ?: merge(ProviderIdentitySchemaV1.ProviderIdentity(dataType, SecureHash.randomSHA256().toString()))
+        }
+        return result!!.identityToken
+    }
+
+    private fun cacheKey(attachmentHash: String, schemaFingerprint: String) = "$attachmentHash:$schemaFingerprint"
+
+}
@@ -25,6 +25,6 @@ class ProviderRewardOutputRetrievalFlow(private val flowId: String) : FlowLogic<
         val enclaveClientService = serviceHub.cordaService(EnclaveClientService::class.java)
         val provider = ourIdentity
 
-        return enclaveClientService.readJsonFromOutputBytesAndSchema(providerDbStoreService.retrieveRewardResponseWithFlowId(flowId)!!, "rewards").toString()
+        return enclaveClientService.readJsonFromOutputBytes(providerDbStoreService.retrieveRewardResponseWithFlowId(flowId)!!).toString()
     }
 }
\ No newline at end of file
@@ -5,6 +5,7 @@ import com.protocol180.aggregator.states.CoalitionDataType
 import com.protocol180.aggregator.states.DataOutputState
 import com.protocol180.aggregator.states.RewardsState
 import com.protocol180.aggregator.states.RoleType
+import net.corda.core.crypto.SecureHash
 import net.corda.core.internal.readFully
 import net.corda.core.node.ServiceHub
 import net.corda.core.node.services.Vault
@@ -20,9 +21,17 @@ import net.corda.testing.node.TestCordapp
 import org.junit.After
 import org.junit.Before
 import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.util.concurrent.Future
+import java.util.zip.ZipEntry
+import java.util.zip.ZipInputStream
+import java.util.zip.ZipOutputStream
 import kotlin.test.assertEquals
 import kotlin.test.assertFailsWith
 import kotlin.test.assertNotNull
+import kotlin.test.assertNotEquals
+import kotlin.test.assertNull
 import kotlin.test.assertTrue
 
 /**
@@ -44,6 +53,13 @@ class ConsumerAggregationFlowTest {
 
     @Before
     fun setup() {
+        setupNetwork(emptyMap())
+    }
+
+    /**
+     * Starts the network and records the coalition configuration, with the given CorDapp config on the host.
+     */
+    private fun setupNetwork(hostConfig: Map<String, Any>) {
         network = MockNetwork(
                 MockNetworkParameters(
                         cordappsForAllNodes = listOf(
@@ -54,7 +70,7 @@ class ConsumerAggregationFlowTest {
         )
         consumer1 = prepareNodeForRole(RoleType.DATA_CONSUMER)
         consumer2 = prepareNodeForRole(RoleType.DATA_CONSUMER)
-        host = prepareNodeForRole(RoleType.COALITION_HOST)
+        host = prepareNodeForRole(RoleType.COALITION_HOST, hostConfig)
         provider1 = prepareNodeForRole(RoleType.DATA_PROVIDER)
         provider2 = prepareNodeForRole(RoleType.DATA_PROVIDER)
         network.runNetwork()
@@ -67,17 +83,36 @@ class ConsumerAggregationFlowTest {
         network.stopNodes()
     }
 
-    private fun prepareNodeForRole(role: RoleType): StartedMockNode {
+    /**
+     * Restarts the network with the given CorDapp config on the host, for tests of the host's optional modes.
+     */
+    private fun restartNetwork(hostConfig: Map<String, Any>) {
+        network.stopNodes()
+        setupNetwork(hostConfig)
+    }
+
+    private fun prepareNodeForRole(role: RoleType, config: Map<String, Any> = emptyMap()): StartedMockNode {
         return network.createNode(
                 parameters = MockNodeParameters(
                         additionalCordapps = listOf(
                                 TestCordapp.findCordapp("com.protocol180.aggregator.flow")
-                                        .withConfig(mapOf(Pair(NetworkParticipantService.PARTICIPANT_ROLE_CONFIG_KEY, role.name)))
+                                        .withConfig(config + Pair(NetworkParticipantService.PARTICIPANT_ROLE_CONFIG_KEY, role.name))
                         )
                 )
         )
     }
 
+    /**
+     * Runs the network until the given flows are done, for flows that sleep and are woken up outside of the network.
+     */
+    private fun runNetworkUntilDone(vararg futures: Future<*>) {
+        val deadline = System.currentTimeMillis() + 60000
+        while (!futures.all { it.isDone } && System.currentTimeMillis() < deadline) {
+            network.runNetwork()
+            Thread.sleep(100)
+        }
+    }
+
     private fun createConfigurationState() {
         var coalitionPartyToRole = mapOf(RoleType.COALITION_HOST to setOf(host.info.chooseIdentityAndCert().party.name),
             RoleType.DATA_CONSUMER to setOf(consumer1.info.chooseIdentityAndCert().party.name,consumer2.info.chooseIdentityAndCert().party.name),
@@ -254,6 +289,161 @@ class ConsumerAggregationFlowTest {
     }
 
 
+    @Test
+    fun coalescedConsumerAggregationFlowTest() {
+        restartNetwork(mapOf(ConsumerAggregationFlowResponder.CONSUMER_COALESCING_WINDOW_SECONDS_CONFIG_KEY to 2))
+        val dataType = "testDataType1"
+        uploadAttachmentToNode(provider1.services, dataType, "Provider1InputData.zip")
+        uploadAttachmentToNode(provider2.services, dataType, "Provider2InputData.zip")
+
+        //both requests reach the host within the window of the first one, and share its aggregation
+        val future1 = consumer1.startFlow(ConsumerAggregationFlow(dataType, "test schema for DataType1 code"))
+        val future2 = consumer2.startFlow(ConsumerAggregationFlow(dataType, "test schema for coalesced aggregation"))
+        runNetworkUntilDone(future1, future2)
+
+        val output1 = future1.getOrThrow().tx.outputsOfType<DataOutputState>().single()
+        val output2 = future2.getOrThrow().tx.outputsOfType<DataOutputState>().single()
+        assertEquals(consumer1.info.legalIdentities.first(), output1.consumer)
+        assertEquals(consumer2.info.legalIdentities.first(), output2.consumer)
+        assertNotNull(consumer1.startFlow(ConsumerDataOutputRetrievalFlow(output1.flowTopic)).getOrThrow())
+        assertNotNull(consumer2.startFlow(ConsumerDataOutputRetrievalFlow(output2.flowTopic)).getOrThrow())
+
+        //the providers' data was gathered and rewarded once for both consumers
+        provider1.transaction {
+            assertEquals(1, provider1.services.vaultService.queryBy<RewardsState>(
+                    VaultQueryCriteria(status = Vault.StateStatus.UNCONSUMED)).states.size)
+        }
+        provider2.transaction {
+            assertEquals(1, provider2.services.vaultService.queryBy<RewardsState>(
+                    VaultQueryCriteria(status = Vault.StateStatus.UNCONSUMED)).states.size)
+        }
+    }
+
+    @Test
+    fun cachedConsumerAggregationFlowTest() {
+        restartNetwork(mapOf(ConsumerAggregationFlowResponder.RESULT_CACHE_CONFIG_KEY to true))
+        val dataType = "testDataType1"
+        uploadAttachmentToNode(provider1.services, dataType, "Provider1InputData.zip")
+        uploadAttachmentToNode(provider2.services, dataType, "Provider2InputData.zip")
+
+        //the second aggregation runs over the same inputs, and is served from the outputs cached by the first
+        val outputs = (1..2).map {
+            val future = consumer1.startFlow(ConsumerAggregationFlow(dataType, "test schema for DataType1 code"))
+            network.runNetwork()
+            future.getOrThrow().tx.outputsOfType<DataOutputState>().single()
+        }
+        val dataOutputs = outputs.map { consumer1.startFlow(ConsumerDataOutputRetrievalFlow(it.flowTopic)).getOrThrow() }
+        assertEquals(dataOutputs[0], dataOutputs[1])
+
+        //every provider is rewarded for both aggregations, with the same rewards
+        listOf(provider1, provider2).forEach { provider ->
+            val rewardsStates = provider.transaction {
+                provider.services.vaultService.queryBy<RewardsState>(
+                        VaultQueryCriteria(status = Vault.StateStatus.UNCONSUMED)).states.map { it.state.data }
+            }
+            assertEquals(2, rewardsStates.size)
+            val rewardOutputs = rewardsStates.map { provider.startFlow(ProviderRewardOutputRetrievalFlow(it.flowTopic)).getOrThrow() }
+            assertEquals(rewardOutputs[0], rewardOutputs[1])
+        }
+
+        //the digests providers reported are bound to identity tokens of their own
+        val identityTokens = listOf(provider1, provider2).map { provider ->
+            val providerDbStoreService = provider.services.cordaService(ProviderDBStoreService::class.java)
+            provider.transaction { providerDbStoreService.retrieveProviderIdentityToken(dataType) }
+        }
+        assertNotEquals(identityTokens[0], identityTokens[1])
+    }
+
+    @Test
+    fun batchedRewardsConsumerAggregationFlowTest() {
+        restartNetwork(mapOf(ConsumerAggregationFlowResponder.BATCHED_REWARDS_ISSUANCE_CONFIG_KEY to true))
+        val dataType = "testDataType1"
+        uploadAttachmentToNode(provider1.services, dataType, "Provider1InputData.zip")
+        uploadAttachmentToNode(provider2.services, dataType, "Provider2InputData.zip")
+        runConsumerAggregation(dataType)
+
+        //the host issues the rewards states of all providers in a single transaction, with one output per provider
+        val rewardsTransactionIds = listOf(provider1, provider2).map { provider ->
+            provider.transaction {
+                provider.services.vaultService.queryBy<RewardsState>(
+                        VaultQueryCriteria(status = Vault.StateStatus.UNCONSUMED)).states.single().ref.txhash
+            }
+        }
+        assertEquals(1, rewardsTransactionIds.toSet().size)
+        val rewardsTransaction = host.transaction { host.services.validatedTransactions.getTransaction(rewardsTransactionIds[0])!! }
+        val rewardsStates = rewardsTransaction.tx.outputsOfType<RewardsState>()
+        assertEquals(rewardsTransaction.tx.outputStates.size, rewardsStates.size)
+        assertEquals(listOf(provider1, provider2).map { it.info.legalIdentities.first() }.toSet(), rewardsStates.map { it.provider }.toSet())
+        assertEquals(rewardsStates.size, rewardsStates.map { it.provider }.toSet().size)
+
+        //each state only holds the hash of the provider's rewards, which the provider keeps off-ledger
+        listOf(provider1, provider2).forEach { provider ->
+            val rewardsState = rewardsStates.single { it.provider == provider.info.legalIdentities.first() }
+            assertEquals(0, rewardsState.decryptedRewardsBytes.size)
+            val providerDbStoreService = provider.services.cordaService(ProviderDBStoreService::class.java)
+            val rewardsBytes = provider.transaction { providerDbStoreService.retrieveRewardResponseWithFlowId(rewardsState.flowTopic)!! }
+            assertEquals(SecureHash.sha256(rewardsBytes), rewardsState.rewardsHash)
+            assertTrue(provider.startFlow(ProviderRewardOutputRetrievalFlow(rewardsState.flowTopic)).getOrThrow().isNotEmpty())
+        }
+    }
+
+    @Test
+    fun incrementalConsumerAggregationFlowTest() {
+        val dataType = "testDataType1"
+        //provider 1's rows: a baseline, the baseline with rows appended to it, and rows changed rather than appended to
+        val revisions = listOf<(List<String>) -> List<String>>({ it.take(8) }, { it }, { it.drop(1) })
+        uploadAttachmentToNode(provider2.services, dataType, "Provider2InputData.zip")
+        val expectedOutputs = revisions.map {
+            uploadRowsToNode(provider1.services, dataType, "Provider1InputData.zip", it)
+            runConsumerAggregation(dataType)
+        }
+
+        //aggregations building on retained rows must run on the enclave holding them, even with several pooled enclaves
+        restartNetwork(mapOf(ConsumerAggregationFlowResponder.INCREMENTAL_AGGREGATION_CONFIG_KEY to true,
+                EnclaveHostService.ENCLAVE_POOL_SIZE_CONFIG_KEY to 2))
+        uploadAttachmentToNode(provider2.services, dataType, "Provider2InputData.zip")
+        val providerDbStoreService = provider1.services.cordaService(ProviderDBStoreService::class.java)
+        val watermark = { provider1.transaction { providerDbStoreService.retrieveProviderDataWatermark(dataType)!! } }
+        val cachedInput = { attachmentHash: String, uploadFingerprint: String ->
+            provider1.transaction { providerDbStoreService.retrieveCachedProviderInput(attachmentHash, uploadFingerprint) }
+        }
+
+        //baseline: the provider uploads all its rows, which the enclave retains
+        val (baselineHash, baselineRowCount) = uploadRowsToNode(provider1.services, dataType, "Provider1InputData.zip", revisions[0])
+        assertEquals(expectedOutputs[0], runConsumerAggregation(dataType))
+        val baselineWatermark = watermark()
+        assertEquals(baselineRowCount, baselineWatermark.rowCount)
+        assertNotNull(cachedInput(baselineHash, baselineWatermark.inputFingerprint))
+
+        //delta: the provider only uploads the rows appended to its baseline
+        val (deltaHash, deltaRowCount) = uploadRowsToNode(provider1.services, dataType, "Provider1InputData.zip", revisions[1])
+        assertEquals(expectedOutputs[1], runConsumerAggregation(dataType))
+        val deltaWatermark = watermark()
+        assertEquals(baselineWatermark.baselineToken, deltaWatermark.baselineToken)
+        assertEquals(deltaRowCount, deltaWatermark.rowCount)
+        assertNotNull(cachedInput(deltaHash, "${deltaWatermark.inputFingerprint}+$baselineRowCount"))
+        assertNull(cachedInput(deltaHash, deltaWatermark.inputFingerprint))
+
+        //fallback: the provider's rows no longer start with those retained, so it uploads all of them again
+        val (fallbackHash, fallbackRowCount) = uploadRowsToNode(provider1.services, dataType, "Provider1InputData.zip", revisions[2])
+        assertEquals(expectedOutputs[2], runConsumerAggregation(dataType))
+        assertEquals(fallbackRowCount, watermark().rowCount)
+        assertNotNull(cachedInput(fallbackHash, deltaWatermark.inputFingerprint))
+        assertNull(cachedInput(deltaHash, "${deltaWatermark.inputFingerprint}+$baselineRowCount"))
+
+        //the same rows again: there are no rows left to upload, and the attachment's full input stays cached
+        assertEquals(expectedOutputs[2], runConsumerAggregation(dataType))
+        assertEquals(fallbackRowCount, watermark().rowCount)
+        assertNotNull(cachedInput(fallbackHash, "${deltaWatermark.inputFingerprint}+$fallbackRowCount"))
+        assertNotNull(cachedInput(fallbackHash, deltaWatermark.inputFingerprint))
+
+        //every aggregation rewarded the provider
+        provider1.transaction {
+            assertEquals(4, provider1.services.vaultService.queryBy<RewardsState>(
+                    VaultQueryCriteria(status = Vault.StateStatus.UNCONSUMED)).states.size)
+        }
+    }
+
     @Test
     fun consumerOutputQueryTestAfterAggregation() {
         val dataType = "testDataType1"
@@ -319,6 +509,37 @@ class ConsumerAggregationFlowTest {
 
 
 
+    /**
+     * Runs an aggregation for consumer 1 and returns its data output.
+     */
+    private fun runConsumerAggregation(dataType: String): String {
+        val future = consumer1.startFlow(ConsumerAggregationFlow(dataType, "test schema for DataType1 code"))
+        network.runNetwork()
+        val output = future.getOrThrow().tx.outputsOfType<DataOutputState>().single()
+        return consumer1.startFlow(ConsumerDataOutputRetrievalFlow(output.flowTopic)).getOrThrow()
+    }
+
+    /**
+     * Uploads the rows of a zipped CSV test file, as selected from its data rows, and returns the hash of the
+     * attachment and the number of rows uploaded.
+     */
+    private fun uploadRowsToNode(service: ServiceHub, dataType: String, filename: String,
+                                 rows: (List<String>) -> List<String>): Pair<String, Int> {
+        val lines = ZipInputStream(ClassLoader.getSystemClassLoader().getResourceAsStream(filename)).use {
+            it.nextEntry
+            it.bufferedReader().readLines().filter { line -> line != "" }
+        }
+        val selectedRows = rows(lines.drop(1))
+        val zipBytes = ByteArrayOutputStream()
+        ZipOutputStream(zipBytes).use {
+            it.putNextEntry(ZipEntry(filename.removeSuffix(".zip") + ".csv"))
+            it.write((listOf(lines.first()) + selectedRows).joinToString("\n").toByteArray())
+            it.closeEntry()
+        }
+        val attachmentHash = service.attachments.importAttachment(ByteArrayInputStream(zipBytes.toByteArray()), dataType, filename)
+        return Pair(attachmentHash.toString(), selectedRows.size)
+    }
+
     private fun uploadAttachmentToNode(service: ServiceHub,
                                        dataType: String,
                                        filename: String): String {
@@ -0,0 +1,60 @@
+package com.protocol180.aggregator.flow
+
+import org.apache.avro.Schema
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNull
+
+class CsvRowMapperTest {
+
+    private val schema = Schema.Parser().parse("""
+        {"type": "record", "name": "AggregateInput", "fields": [
+            {"name": "model", "type": "string"},
+            {"name": "units", "type": "int"},
+            {"name": "price", "type": "double"},
+            {"name": "discount", "type": ["null", "int"]},
+            {"name": "ev", "type": "boolean"}
+        ]}""")
+
+    @Test
+    fun mapsColumnsInHeaderOrderToTypedFields() {
+        val rowMapper = CsvRowMapper("units,model,ev,price,discount", schema)
+
+        val record = rowMapper.map("7, \"Model 3\" ,true,63525.5,")
+
+        assertEquals(7, record.get("units"))
+        assertEquals("\"Model 3\"", record.get("model"))
+        assertEquals(true, record.get("ev"))
+        assertEquals(63525.5, record.get("price"))
+        assertNull(record.get("discount"))
+
+        assertEquals(12, rowMapper.map("1,\"Model S\",false,90000.0,12").get("discount"))
+    }
+
+    @Test
+    fun rejectsUnknownColumnsAndShortLines() {
+        assertFailsWith(IllegalArgumentException::class) { CsvRowMapper("model,colour", schema) }
+        assertFailsWith(IllegalArgumentException::class) { CsvRowMapper("model,units,price", schema).map("\"Model 3\",7") }
+    }
+
+    @Test
+    fun rejectsLinesWithMoreCellsThanTheHeader() {
+        val rowMapper = CsvRowMapper("model,units,price", schema)
+
+        val error = assertFailsWith(IllegalArgumentException::class) { rowMapper.map("\"Model 3\",7,63525.5,extra") }
+        assertEquals("Line has more than 3 columns: \"Model 3\",7,63525.5,extra", error.message)
+        assertFailsWith(IllegalArgumentException::class) { rowMapper.map("\"Model 3\",7,63525.5,") }
+    }
+
+    @Test
+    fun trimsHeaderNames() {
+        val rowMapper = CsvRowMapper(" model , units,price ", schema)
+
+        val record = rowMapper.map("\"Model 3\",7,63525.5")
+
+        assertEquals("\"Model 3\"", record.get("model"))
+        assertEquals(7, record.get("units"))
+        assertEquals(63525.5, record.get("price"))
+    }
+}